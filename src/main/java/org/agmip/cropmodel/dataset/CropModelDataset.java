@@ -1,35 +1,64 @@
 package org.agmip.cropmodel.dataset;
 
+import com.opencsv.CSVWriter;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.nio.file.FileSystem;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.agmip.ace.AceDataset;
-import org.agmip.ace.AceExperiment;
-import org.agmip.ace.AceSoil;
-import org.agmip.ace.AceWeather;
-import org.agmip.ace.io.AceParser;
 import org.agmip.cropmodel.dataset.filetype.*;
 import org.agmip.cropmodel.dataset.filetype.CropModelFile.CropModelFileType;
+import org.agmip.cropmodel.dataset.util.ACEIdExtractor;
 import org.agmip.cropmodel.dataset.util.ACESeamer;
 import org.agmip.cropmodel.dataset.util.AgMIPFileTypeIdentifier;
 import org.agmip.cropmodel.dataset.util.DOMEHandler;
 import org.agmip.cropmodel.dataset.util.DOMESeamer;
+import org.agmip.cropmodel.dataset.util.DiagnosticLog;
+import org.agmip.cropmodel.dataset.util.IdentificationCache;
 import org.agmip.cropmodel.dataset.util.LinkChecker;
-import org.agmip.cropmodel.dataset.util.ZipFS;
+import org.agmip.cropmodel.dataset.util.LinkageIndex;
+import org.agmip.cropmodel.dataset.util.PackageExtractor;
+import org.agmip.cropmodel.dataset.util.PackageManifest;
+import org.agmip.cropmodel.dataset.util.PackageNameRegistry;
+import org.agmip.cropmodel.dataset.util.ZipPackageReader;
+import org.agmip.cropmodel.dataset.util.ZipPackageWriter;
 
 public class CropModelDataset {
 
@@ -42,6 +71,24 @@ public class CropModelDataset {
   private final Map<Path, CropModelFileType> ftLookup = new HashMap<>();
   private Path basedir;
   private boolean datasetValid = false;
+  private ExecutorService executor = null;
+  private boolean useIdentificationCache = false;
+  private IdentificationCache identificationCache = null;
+  private boolean useLinkageBloomFilter = false;
+  private boolean incrementalPackaging = false;
+  private boolean deduplicatePackageFiles = false;
+  private int fileErrorLimit = DiagnosticLog.UNLIMITED;
+  private int datasetErrorLimit = DiagnosticLog.UNLIMITED;
+  private boolean failFast = false;
+  private boolean quickValidation = false;
+  private int quickValidationSamples = ACMORowSample.DEFAULT_SAMPLES;
+  private DatasetWatcher watcher = null;
+
+  /**
+   * The CSV file listing the original and packaged name of every renamed file
+   * in a package.
+   */
+  public static final String RENAME_MANIFEST = "rename_manifest.csv";
 
   private final static Logger LOG = Logger.getLogger(CropModelDataset.class.getName());
 
@@ -51,16 +98,154 @@ public class CropModelDataset {
   public boolean isValid() {
     return datasetValid;
   }
+
+  /**
+   * Set the executor used to identify files in parallel. When no executor is
+   * set (the default), files are identified one at a time on the calling
+   * thread.
+   *
+   * @param executor the executor to use, or {@code null} to run serially
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public ExecutorService getExecutor() {
+    return this.executor;
+  }
+
+  /**
+   * Put a Bloom filter in front of the ACEB IDs used to check ACMO linkage.
+   * This speeds up datasets where many ACMO entries are not linked, at the
+   * cost of a little more memory.
+   *
+   * @param useLinkageBloomFilter {@code true} to build the filter
+   */
+  public void setUseLinkageBloomFilter(boolean useLinkageBloomFilter) {
+    this.useLinkageBloomFilter = useLinkageBloomFilter;
+  }
+
+  /**
+   * Package incrementally. Packages then carry a manifest of the files each
+   * entry was made from, and packaging again to an existing package copies
+   * the entries whose files have not changed from it instead of rebuilding
+   * them.
+   *
+   * @param incrementalPackaging {@code true} to package incrementally
+   */
+  public void setIncrementalPackaging(boolean incrementalPackaging) {
+    this.incrementalPackaging = incrementalPackaging;
+  }
+
+  /**
+   * Store files with identical content only once in packages. Each file left
+   * out is listed in {@value PackageExtractor#DUPLICATES_MANIFEST} with the
+   * packaged file it is identical to, and is restored when the package is
+   * extracted with {@link PackageExtractor#extract(Path, Path, boolean)}.
+   *
+   * @param deduplicatePackageFiles {@code true} to leave out duplicates
+   */
+  public void setDeduplicatePackageFiles(boolean deduplicatePackageFiles) {
+    this.deduplicatePackageFiles = deduplicatePackageFiles;
+  }
+
+  /**
+   * Set how many errors are listed for each ACMO file when validating. The
+   * rest are counted by kind at the end of the file's report.
+   *
+   * @param fileErrorLimit the number of errors to list per file, or
+   *   {@link DiagnosticLog#UNLIMITED} (the default) to list them all
+   */
+  public void setFileErrorLimit(int fileErrorLimit) {
+    if (fileErrorLimit < 0) {
+      throw new IllegalArgumentException("Negative error limit: " + fileErrorLimit);
+    }
+    this.fileErrorLimit = fileErrorLimit;
+  }
+
+  /**
+   * Set how many failed files, or failed DOME and renaming checks, are
+   * reported when validating. The rest are counted by stage at the end of
+   * the report.
+   *
+   * @param datasetErrorLimit the number of failures to report, or
+   *   {@link DiagnosticLog#UNLIMITED} (the default) to report them all
+   */
+  public void setDatasetErrorLimit(int datasetErrorLimit) {
+    if (datasetErrorLimit < 0) {
+      throw new IllegalArgumentException("Negative error limit: " + datasetErrorLimit);
+    }
+    this.datasetErrorLimit = datasetErrorLimit;
+  }
+
+  /**
+   * Stop validating at the first failure, for a quick pass or fail answer.
+   * Each file stops at its first failing line, and the stages after the first
+   * failed one are reported as skipped.
+   *
+   * @param failFast {@code true} to stop at the first failure
+   */
+  public void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  /**
+   * Validate ACMO files quickly, for the edit and validate loop. The format
+   * and the linkage of each ACMO file are only checked on its first and last
+   * data lines and on a sample of the lines in between, and the report states
+   * how much was checked. A file with little data is still checked in full.
+   * A dataset that passes quick validation is not marked valid, full
+   * validation (the default) is needed before submitting.
+   *
+   * @param quickValidation {@code true} to sample ACMO files
+   * @see ACMOFile#quickCheck(int)
+   */
+  public void setQuickValidation(boolean quickValidation) {
+    this.quickValidation = quickValidation;
+  }
+
+  /**
+   * Set the number of data lines drawn from each ACMO file for quick
+   * validation. More lines give more confidence in a file that passes.
+   *
+   * @param quickValidationSamples the number of lines to draw, by default
+   *   {@value ACMORowSample#DEFAULT_SAMPLES}
+   */
+  public void setQuickValidationSamples(int quickValidationSamples) {
+    if (quickValidationSamples < 0) {
+      throw new IllegalArgumentException("Negative number of samples: " + quickValidationSamples);
+    }
+    this.quickValidationSamples = quickValidationSamples;
+  }
+
+  /**
+   * Keep an identification cache in the dataset directory, so that later
+   * calls to {@link #identifyDatasetFiles(Path)} and {@link #refreshIdentify()}
+   * only identify new or changed files.
+   *
+   * @param useIdentificationCache {@code true} to read and write the cache
+   */
+  public void setUseIdentificationCache(boolean useIdentificationCache) {
+    this.useIdentificationCache = useIdentificationCache;
+    if (!useIdentificationCache) {
+      this.identificationCache = null;
+    }
+  }
   
   public void identifyDatasetFiles(Path basedir) {
     identifyDatasetFiles(basedir, true);
   }
 
-  public CropModelFileType lookupFileType(Path p) {
+  public synchronized CropModelFileType lookupFileType(Path p) {
     return ftLookup.get(p);
   }
   
-  public void identifyDatasetFiles(Path basedir, boolean skipDotFiles) {
+  public synchronized void identifyDatasetFiles(Path basedir, boolean skipDotFiles) {
+    if (useIdentificationCache
+        && (identificationCache == null || !identificationCache.getBasedir().equals(basedir))) {
+      identificationCache = IdentificationCache.load(basedir);
+    }
+    List<Path> files = new ArrayList<>();
     try {
       Files.walkFileTree(basedir, new SimpleFileVisitor<Path>() {
         @Override
@@ -74,7 +259,7 @@ public class CropModelDataset {
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
           if (!file.getFileName().toString().startsWith(".")) {
-            addFile(file);
+            files.add(file);
           }
           return FileVisitResult.CONTINUE;
         }
@@ -82,10 +267,55 @@ public class CropModelDataset {
     } catch (IOException ex) {
       LOG.log(Level.SEVERE, null, ex);
     }
+    identifyAll(files);
+    if (identificationCache != null) {
+      identificationCache.retainAll(files);
+      identificationCache.save();
+    }
     this.basedir = basedir;
   }
 
-  public void refreshIdentify() {
+  private void identifyAll(List<Path> files) {
+    if (executor == null) {
+      files.forEach((file) -> registerFile(file, identifyFile(file)));
+    } else {
+      identifyInParallel(files);
+    }
+  }
+
+  private CropModelFile identifyFile(Path file) {
+    LOG.log(Level.INFO, "Adding file {0}", file);
+    if (identificationCache != null) {
+      return identificationCache.identify(file, executor);
+    }
+    return AgMIPFileTypeIdentifier.identify(file, executor);
+  }
+
+  /**
+   * Identify the files on the executor, then add them on this thread in the
+   * order they were found so the file lists do not depend on scheduling.
+   */
+  private void identifyInParallel(List<Path> files) {
+    List<Future<CropModelFile>> identified = new ArrayList<>(files.size());
+    for (Path file : files) {
+      identified.add(executor.submit(() -> identifyFile(file)));
+    }
+    for (int i = 0; i < files.size(); i++) {
+      CropModelFile f = null;
+      try {
+        f = identified.get(i).get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        identified.forEach((task) -> task.cancel(true));
+        return;
+      } catch (ExecutionException ex) {
+        LOG.log(Level.SEVERE, "Failed to identify " + files.get(i), ex.getCause());
+      }
+      registerFile(files.get(i), f);
+    }
+  }
+
+  public synchronized void refreshIdentify() {
     if (this.basedir != null) {
       aceFiles.clear();
       domeFiles.clear();
@@ -98,9 +328,96 @@ public class CropModelDataset {
     }
   }
 
-  public CropModelFileType addFile(Path file) {
+  /**
+   * Watch the dataset directory and apply file creates, modifies and deletes
+   * to the dataset as they happen. Bursts of changes are applied together.
+   * The dataset files must have been identified first.
+   *
+   * @return {@code true} if the dataset directory is being watched
+   */
+  public synchronized boolean startWatching() {
+    if (this.basedir == null) {
+      LOG.log(Level.WARNING, "Cannot watch a dataset before identifying its files");
+      return false;
+    }
+    if (this.watcher == null) {
+      try {
+        this.watcher = new DatasetWatcher(this, this.basedir);
+        this.watcher.start();
+      } catch (IOException ex) {
+        LOG.log(Level.SEVERE, null, ex);
+        this.watcher = null;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public synchronized void stopWatching() {
+    if (this.watcher != null) {
+      this.watcher.close();
+      this.watcher = null;
+    }
+  }
+
+  public synchronized boolean isWatching() {
+    return this.watcher != null;
+  }
+
+  /**
+   * Apply a batch of changed paths from the dataset watcher. Paths that no
+   * longer exist are removed, along with any files under them, and paths that
+   * do exist are identified again.
+   *
+   * @param changed the created, modified or deleted paths
+   * @param overflow {@code true} if events were lost and the whole directory
+   *   must be identified again
+   */
+  synchronized void applyChanges(Collection<Path> changed, boolean overflow) {
+    if (overflow) {
+      refreshIdentify();
+      return;
+    }
+    List<Path> present = new ArrayList<>();
+    for (Path p : changed) {
+      boolean exists = Files.isRegularFile(p);
+      if (exists && ftLookup.get(p) == CropModelFileType.MODEL_SPECIFIC) {
+        // Keep files marked as cultivar files as they are.
+        continue;
+      }
+      if (exists) {
+        removeFiles(p);
+        present.add(p);
+      } else if (!Files.exists(p)) {
+        // A deleted file or directory, drop everything that was under it
+        removeFiles(p);
+      }
+    }
+    LOG.log(Level.INFO, "Applying {0} changed files", changed.size());
+    identifyAll(present);
+    if (identificationCache != null) {
+      identificationCache.retainAll(ftLookup.keySet());
+      identificationCache.save();
+    }
+  }
+
+  private void removeFiles(Path p) {
+    Predicate<CropModelFile> under = (f) -> f.getPath().startsWith(p);
+    aceFiles.removeIf(under);
+    domeFiles.removeIf(under);
+    acmoFiles.removeIf(under);
+    linkageFiles.removeIf(under);
+    modelFiles.removeIf(under);
+    extraFiles.removeIf(under);
+    ftLookup.keySet().removeIf((f) -> f.startsWith(p));
+  }
+
+  public synchronized CropModelFileType addFile(Path file) {
     LOG.log(Level.INFO, "Adding file {0}", file);
-    CropModelFile f = AgMIPFileTypeIdentifier.identify(file);
+    return registerFile(file, AgMIPFileTypeIdentifier.identify(file, executor));
+  }
+
+  private CropModelFileType registerFile(Path file, CropModelFile f) {
     CropModelFileType ft = null;
     if (f != null) {
       switch (f.getFileType()) {
@@ -111,6 +428,9 @@ public class CropModelDataset {
           domeFiles.add((DOMEFile) f);
           break;
         case ACMO:
+          // Also for files restored from the identification cache, which
+          // are read when first validated.
+          ((ACMOFile) f).setExecutor(executor);
           acmoFiles.add((ACMOFile) f);
           break;
         case LINKAGE:
@@ -130,7 +450,7 @@ public class CropModelDataset {
     return ft;
   }
 
-  public String promoteToCultivar(Path f) {
+  public synchronized String promoteToCultivar(Path f) {
     SupplementalFile file = new SupplementalFile(f);
     ModelSpecificFile modelFile = new ModelSpecificFile(f);
     String msg;
@@ -151,7 +471,7 @@ public class CropModelDataset {
     return modelFiles;
   }
 
-  public String datasetStatisticsHTML() {
+  public synchronized String datasetStatisticsHTML() {
     StringBuilder sb = new StringBuilder();
     sb.append("<p>ACE Files: ");
     sb.append(aceFiles.size());
@@ -173,7 +493,33 @@ public class CropModelDataset {
     return validateDataset(out, err);
   }
 
-  public boolean validateDataset(PrintWriter out, PrintWriter err) {
+  public synchronized boolean validateDataset(PrintWriter out, PrintWriter err) {
+    // Every task started on the executor, waited for before returning so no
+    // check is left running on it, or holding an ACMOFile
+    List<CompletableFuture<?>> tasks = new ArrayList<>();
+    // Set at the first failure when failing fast, and on return, tasks not
+    // started by then are skipped
+    AtomicBoolean failed = new AtomicBoolean(false);
+    try {
+      return validateStages(out, err, tasks, failed);
+    } finally {
+      failed.set(true);
+      awaitTasks(tasks);
+    }
+  }
+
+  private static void awaitTasks(List<CompletableFuture<?>> tasks) {
+    for (CompletableFuture<?> task : tasks) {
+      try {
+        task.join();
+      } catch (CompletionException | CancellationException ex) {
+        LOG.log(Level.WARNING, "Validation task failed", ex);
+      }
+    }
+  }
+
+  private boolean validateStages(PrintWriter out, PrintWriter err, List<CompletableFuture<?>> tasks,
+      AtomicBoolean failed) {
     // Need to know if I am checking all the files or just a bunch of ACMO files.
     boolean acePresent = aceFiles.size() > 0;
     boolean domePresent = domeFiles.size() > 0;
@@ -186,126 +532,129 @@ public class CropModelDataset {
       return false;
     }
 
+    LinkageIndex index = new LinkageIndex(useLinkageBloomFilter);
     // These are approximate guesses to make loading easier
-    Set<String> eids = new HashSet<>(150);
-    Set<String> wids = new HashSet<>(25);
-    Set<String> sids = new HashSet<>(25);
-    Set<String> dids = new HashSet<>(200);
-    Set<String> domeNames = new HashSet<>(200);
     Set<String> acmoNames = new HashSet<>(200);
     Map<String, String> acmoRename = new HashMap<>();
     Map<String, StringBuilder> acmoDups = new HashMap<>();
-    Set<String> exnames = new HashSet<>(150);
-    Set<String> wstclim = new HashSet<>(100);
-    Set<String> soilids = new HashSet<>(25);
+
+    // The failures reported in full, in the order of a serial run
+    DiagnosticLog<String> failures = new DiagnosticLog<>(datasetErrorLimit);
+    DiagnosticLog<String> aceFailures = new DiagnosticLog<>(datasetErrorLimit);
+    acmoFiles.forEach((acmo) -> {
+      acmo.setErrorLimit(fileErrorLimit);
+      acmo.setFailFast(failFast);
+    });
 
     boolean acebsValid = true;
-    if (acePresent) {
-      out.println("\n------------------------------------------------------------------------");
-      out.println("Validating ACEB files");
-      out.println("------------------------------------------------------------------------\n");
-      out.println("Checking " + aceFiles.size() + " ACEB files...\n");
-      for (ACEFile ace : aceFiles) {
-        try {
-          AceDataset ds = AceParser.parseACEB(ace.getPath().toFile());
-          for (AceExperiment exp : ds.getExperiments()) {
-            try {
-              if (!eids.contains(exp.getId())) {
-                eids.add(exp.getId());
-              }
-              String exname = exp.getValueOr("exname", "");
-              if (!exname.equals("") && !exnames.contains(exname)) {
-                exnames.add(exname);
-              }
-            } catch (IOException ex) {
-              acebsValid = false;
-              err.println("[FAILED] " + ace.getPath().toFile());
-              err.println("         Error loading experiments in file");
-              LOG.log(Level.WARNING, null, ex);
-            }
+    boolean domesValid = true;
+    boolean stop = false;
+    List<CompletableFuture<StageOutput>> linkages = null;
+    if (executor == null) {
+      if (acePresent) {
+        acebsValid = validateAcebs(out, err, index, aceFailures);
+        failures.addAll(aceFailures, (f) -> f);
+        stop = failFast && !acebsValid;
+      }
+      if (domePresent && !stop) {
+        List<List<DOMEHandler.DomeEntry>> domes = new ArrayList<>(domeFiles.size());
+        domeFiles.forEach((dome) -> domes.add(indexDome(dome)));
+        StageOutput domeOutput = new StageOutput();
+        domesValid = validateDomes(domeOutput.out, domeOutput.err, domes);
+        domeOutput.writeTo(out, err, domesValid || failures.add("DOME", "DOME"));
+        stop = failFast && !domesValid;
+      }
+    } else {
+      // Start the ACMO format checks first, ACMOFile keeps the results for
+      // the ACMO and linkage stages below.
+      acmoFiles.forEach((acmo) -> tasks.add(CompletableFuture.runAsync(() -> {
+        if (!failed.get()) {
+          isFormatValid(acmo);
+        }
+      }, executor)));
+      StageOutput aceOutput = new StageOutput();
+      CompletableFuture<Boolean> aceStage = CompletableFuture.completedFuture(true);
+      if (acePresent) {
+        aceStage = CompletableFuture.supplyAsync(() -> {
+          boolean valid = validateAcebs(aceOutput.out, aceOutput.err, index, aceFailures);
+          if (failFast && !valid) {
+            failed.set(true);
           }
-
-          for (AceWeather wth : ds.getWeathers()) {
-            try {
-              if (!wids.contains(wth.getId())) {
-                wids.add(wth.getId());
-              }
-              String wst_id = wth.getValueOr("wst_id", "");
-              String clim_id = wth.getValueOr("clim_id", "");
-              if (!wst_id.equals("") && !wstclim.contains(wst_id + "|" + clim_id)) {
-                wstclim.add(wst_id + "|" + clim_id);
-              }
-            } catch (IOException ex) {
-              acebsValid = false;
-              err.println("[FAILED] " + ace.getPath().toFile());
-              err.println("         Error loading weather in file.");
-              LOG.log(Level.WARNING, null, ex);
-            }
+          return valid;
+        }, executor);
+        tasks.add(aceStage);
+      }
+      StageOutput domeOutput = new StageOutput();
+      CompletableFuture<Boolean> domeStage = CompletableFuture.completedFuture(true);
+      if (domePresent) {
+        // Index each DOME file on its own and check them once all are read.
+        List<CompletableFuture<List<DOMEHandler.DomeEntry>>> indexes = new ArrayList<>(domeFiles.size());
+        domeFiles.forEach((dome) -> indexes.add(CompletableFuture.supplyAsync(() -> {
+          if (failed.get()) {
+            // Not needed once stopped
+            return Collections.<DOMEHandler.DomeEntry>emptyList();
           }
-          for (AceSoil soil : ds.getSoils()) {
-            try {
-              if (!sids.contains(soil.getId())) {
-                sids.add(soil.getId());
+          return indexDome(dome);
+        }, executor)));
+        tasks.addAll(indexes);
+        domeStage = CompletableFuture.allOf(indexes.toArray(new CompletableFuture<?>[0]))
+            .thenApplyAsync((v) -> {
+              if (failed.get()) {
+                return false;
               }
-              String soil_id = soil.getValueOr("soil_id", "");
-              if (!soil_id.equals("") && !soilids.contains(soil_id)) {
-                soilids.add(soil_id);
+              List<List<DOMEHandler.DomeEntry>> domes = new ArrayList<>(indexes.size());
+              indexes.forEach((future) -> domes.add(future.join()));
+              boolean valid = validateDomes(domeOutput.out, domeOutput.err, domes);
+              if (failFast && !valid) {
+                failed.set(true);
               }
-            } catch (IOException ex) {
-              acebsValid = false;
-              err.println("[FAILED] " + ace.getPath().toFile());
-              err.println("         Error loading soils in file.");
-              LOG.log(Level.WARNING, "Failure to parse for weather {0}: {1}", new Object[]{ace.getPath().toString(), ex});
+              return valid;
+            }, executor);
+        tasks.add(domeStage);
+      }
+      if (acmoPresent && acePresent) {
+        // Linkage checks only need the ACEB IDs.
+        linkages = new ArrayList<>(acmoFiles.size());
+        for (ACMOFile acmo : acmoFiles) {
+          linkages.add(aceStage.thenApplyAsync((valid) -> {
+            if (failed.get()) {
+              // Checked on this thread below if it is still needed
+              return null;
             }
-          }
-        } catch (IOException ex) {
-          acebsValid = false;
-          err.println("[FAILED] " + ace.getPath().toFile());
-          err.println("         This file is either corrupted or has an invalid structure.");
-          LOG.log(Level.WARNING, "Failure to parse {0}: {1}", new Object[]{ace.getPath().toString(), ex});
+            return checkLinkage(acmo, index);
+          }, executor));
         }
+        tasks.addAll(linkages);
       }
-
-      out.println("Found " + eids.size() + " unique experiment IDs");
-      out.println("Found " + sids.size() + " unique soil IDs");
-      out.println("Found " + wids.size() + " unique weather IDs");
-      out.println("Found " + exnames.size() + " unique EXNAMEs");
-      out.println("Found " + soilids.size() + " unique SOIL_IDs");
-      out.println("Found " + wstclim.size() + " unique WST_ID and CLIM_ID combinations");
-    }
-
-    boolean domesValid = true;
-    if (domePresent) {
-      // Next we need to get the DOME IDs
-      out.println("\n------------------------------------------------------------------------");
-      out.println("Validating DOME files");
-      out.println("------------------------------------------------------------------------\n");
-      out.println("Checking " + domeFiles.size() + " DOME files...\n");
-      domeFiles.stream().forEach((path) -> {
-        dids.addAll(DOMEHandler.getDomeIds(path.getPath()));
-        domeNames.addAll(DOMEHandler.getDomeNames(path.getPath()));
-      });
-      out.println("Found " + dids.size() + " unique DOME IDs");
-      out.println("Found " + domeNames.size() + " unique DOME Names");
-      if (dids.size() != domeNames.size()) {
-        err.println("[FAILED] More than one DOME share the same name with different values.");
-        err.println("         Please check the DOME metadata. Make each unique by using the DESCRIPTION field.");
-        domesValid = false;
+      acebsValid = aceStage.join();
+      failures.addAll(aceFailures, (f) -> f);
+      aceOutput.writeTo(out, err, true);
+      stop = failFast && !acebsValid;
+      if (!stop) {
+        domesValid = domeStage.join();
+        domeOutput.writeTo(out, err, domesValid || failures.add("DOME", "DOME"));
+        stop = failFast && !domesValid;
       }
     }
+    boolean domesChecked = !(failFast && !acebsValid);
 
     boolean acmosValid = true;
     boolean acmoShadow = false;
-    if (acmoPresent) {
+    boolean acmosChecked = !stop;
+    if (acmoPresent && !stop) {
       out.println("\n------------------------------------------------------------------------");
       out.println("Verifying ACMO files");
       out.println("------------------------------------------------------------------------\n");
-      out.println("Checking " + acmoFiles.size() + " ACMO files...");
+      if (quickValidation) {
+        out.println("Checking " + acmoFiles.size() + " ACMO files by sampling "
+            + quickValidationSamples + " data lines of each...");
+      } else {
+        out.println("Checking " + acmoFiles.size() + " ACMO files...");
+      }
       for (ACMOFile acmo : acmoFiles) {
         String fname = acmo.getCleanFilename().getFileName().toString();
         LOG.log(Level.INFO, "Renaming {0} to {1}",
-            new Object[]{acmo.getPath().toString(),
-              acmo.getCleanFilename().getFileName().toString()});
+            new Object[]{acmo.getPath().toString(), fname});
         if (acmoNames.contains(fname)) {
           StringBuilder sb;
           if (!acmoDups.containsKey(fname)) {
@@ -325,24 +674,59 @@ public class CropModelDataset {
           acmoRename.put(fname, acmo.getPath().toString());
         }
 
-        boolean isValid = acmo.isValid();
-        if (!isValid) {
-          acmosValid = false;
-          err.println("[FAILED] " + acmo.getPath().toString());
-          err.println(acmo.getErrorReport());
+        boolean isValid;
+        String warnings;
+        if (quickValidation) {
+          ACMOQuickCheck check = acmo.quickCheck(quickValidationSamples);
+          isValid = check.isValid();
+          warnings = check.getWarnings();
+          if (!isValid) {
+            acmosValid = false;
+            if (failures.add("ACMO", acmo.getPath().toString())) {
+              err.println("[FAILED] " + acmo.getPath().toString());
+              err.println(check.getErrorReport() + "         " + check.getConfidence() + "\n");
+            }
+          } else if (!check.isComplete()) {
+            out.println("[SAMPLED] " + acmo.getPath().toString());
+            out.println("          " + check.getConfidence() + "\n");
+          }
+        } else {
+          isValid = acmo.isValid();
+          warnings = acmo.getWarnings();
+          if (!isValid) {
+            acmosValid = false;
+            if (failures.add("ACMO", acmo.getPath().toString())) {
+              err.println("[FAILED] " + acmo.getPath().toString());
+              err.println(acmo.getErrorReport());
+            }
+          }
         }
-        if (!acmo.getWarnings().equals("")) {
+        if (!warnings.equals("")) {
           out.println("[WARNING] " + acmo.getPath().toString());
           out.println("          Suspected multiple crop failures because of blank output lines in ACMO.\n");
           //out.println(acmo.getWarnings());
         }
+        if (failFast && !isValid) {
+          stop = true;
+          failed.set(true);
+          break;
+        }
       }
+    }
+    boolean renamingChecked = !stop;
+    if (acmoPresent && !stop) {
       out.println("\n------------------------------------------------------------------------");
       out.println("Checking ACMO renaming conflict");
       out.println("------------------------------------------------------------------------\n");
       out.println("NOTE: This product renames ACMO files to match the AgMIP protocols.\n");
       if (!acmoDups.isEmpty()) {
         acmoShadow = true;
+        if (failFast) {
+          stop = true;
+          failed.set(true);
+        }
+      }
+      if (!acmoDups.isEmpty() && failures.add("ACMO Renaming", "ACMO Renaming")) {
         err.println("[FAILED] More than one ACMO file will share the same name.");
         err.println("         Please check the MAN_ID and RAP_ID columns in the ACMO files.");
         err.println("         MAN_ID should be blank unless using an adaptation.");
@@ -359,22 +743,31 @@ public class CropModelDataset {
     //  out.println("Verifying AgMIP linkage files.");
     //}
     boolean acmoLinkageTest = true;
-    if (acmoPresent && acePresent) {
+    boolean linkageChecked = !stop;
+    if (acmoPresent && acePresent && !stop) {
       out.println("\n------------------------------------------------------------------------");
       out.println("Verifying linkages between ACEB, DOME and ACMO files");
       out.println("------------------------------------------------------------------------\n");
-      out.println("Checking linkages in " + acmoFiles.size() + " ACMO files...\n");
+      if (quickValidation) {
+        out.println("Checking linkages in " + acmoFiles.size() + " ACMO files by sampling "
+            + quickValidationSamples + " data lines of each...\n");
+      } else {
+        out.println("Checking linkages in " + acmoFiles.size() + " ACMO files...\n");
+      }
       boolean acmoLinkageAll = true;
-      for (ACMOFile path : acmoFiles) {
-        String cm = path.getCMSeries().orElse("");
-        if (cm.equals("C3MP") || cm.equals("CTWN")) {
-          out.println("- Skipping senstivity analysis linkage checking on " + path.getPath().toString() + "\n");
-        } else if (!path.isValid()) {
-          err.println("- Skipping invalid ACMO file " + path.getPath().toString() + "\n");
-        } else {
-          boolean thisLinkage = LinkChecker.checkLinkedData(path.getPath(), out, err, eids, sids, wids, exnames, soilids, wstclim);
-          if (!thisLinkage) {
-            acmoLinkageAll = false;
+      for (int i = 0; i < acmoFiles.size(); i++) {
+        StageOutput linkOutput = (linkages == null) ? null : linkages.get(i).join();
+        if (linkOutput == null) {
+          linkOutput = checkLinkage(acmoFiles.get(i), index);
+        }
+        boolean thisLinkage = linkOutput.passed;
+        linkOutput.writeTo(out, err, thisLinkage
+            || failures.add("Linkage", acmoFiles.get(i).getPath().toString()));
+        if (!thisLinkage) {
+          acmoLinkageAll = false;
+          if (failFast) {
+            failed.set(true);
+            break;
           }
         }
       }
@@ -383,96 +776,525 @@ public class CropModelDataset {
       }
     }
 
+    if (failures.isTruncated()) {
+      err.println(failures.getSummary());
+      err.println();
+    }
+
     out.println("------------------------------------------------------------------------");
     out.println("Summary Report:");
-    out.println("ACEB Validation......................... " + (acebsValid ? "SUCCESS" : "FAILED"));
-    out.println("DOME Validation......................... " + (domesValid ? "SUCCESS" : "FAILED"));
-    out.println("ACMO Validation......................... " + (acmosValid ? "SUCCESS" : "FAILED"));
-    out.println("ACMO Renaming........................... " + (!acmoShadow ? "SUCCESS" : "FAILED"));
-    out.println("Linkage Validation...................... " + (acmoLinkageTest ? "SUCCESS" : "FAILED"));
-    datasetValid = acebsValid && domesValid && acmosValid && !acmoShadow && acmoLinkageTest;
+    out.println("ACEB Validation......................... " + stageResult(true, acebsValid));
+    out.println("DOME Validation......................... " + stageResult(domesChecked, domesValid));
+    boolean sampled = quickValidation && acmoPresent;
+    out.println("ACMO Validation......................... " + stageResult(acmosChecked, acmosValid, sampled));
+    out.println("ACMO Renaming........................... " + stageResult(renamingChecked, !acmoShadow));
+    out.println("Linkage Validation...................... "
+        + stageResult(linkageChecked, acmoLinkageTest, sampled && acePresent));
+    boolean valid = acebsValid && domesValid && acmosValid && !acmoShadow && acmoLinkageTest;
+    if (sampled) {
+      out.println("NOTE: Only a sample of each large ACMO file was checked. Run a full validation before submitting.");
+    }
+    // A sampled pass is not enough to submit the dataset
+    datasetValid = valid && !sampled;
     return datasetValid;
 
   }
 
+  private static String stageResult(boolean checked, boolean valid) {
+    return stageResult(checked, valid, false);
+  }
+
+  /**
+   * @param sampled {@code true} if a pass only covered a sample of the data
+   *   lines
+   */
+  private static String stageResult(boolean checked, boolean valid, boolean sampled) {
+    if (!checked) {
+      return "SKIPPED";
+    }
+    if (!valid) {
+      return "FAILED";
+    }
+    return sampled ? "SAMPLED" : "SUCCESS";
+  }
+
+  /**
+   * Read the IDs of every ACEB file.
+   *
+   * @param failures the failed files, only the ones it keeps are reported
+   */
+  private boolean validateAcebs(PrintWriter out, PrintWriter err, LinkageIndex index,
+      DiagnosticLog<String> failures) {
+    boolean acebsValid = true;
+    out.println("\n------------------------------------------------------------------------");
+    out.println("Validating ACEB files");
+    out.println("------------------------------------------------------------------------\n");
+    out.println("Checking " + aceFiles.size() + " ACEB files...\n");
+    for (ACEFile ace : aceFiles) {
+      try {
+        ACEIdExtractor.extract(ace.getPath(), index);
+      } catch (IOException ex) {
+        acebsValid = false;
+        if (failures.add("ACEB", ace.getPath().toString())) {
+          err.println("[FAILED] " + ace.getPath().toFile());
+          err.println("         This file is either corrupted or has an invalid structure.");
+        }
+        LOG.log(Level.WARNING, "Failure to parse {0}: {1}", new Object[]{ace.getPath().toString(), ex});
+        if (failFast) {
+          break;
+        }
+      }
+    }
+    index.seal();
+
+    out.println("Found " + index.getExperimentCount() + " unique experiment IDs");
+    out.println("Found " + index.getSoilCount() + " unique soil IDs");
+    out.println("Found " + index.getWeatherCount() + " unique weather IDs");
+    out.println("Found " + index.getExnameCount() + " unique EXNAMEs");
+    out.println("Found " + index.getSoilIdCount() + " unique SOIL_IDs");
+    out.println("Found " + index.getWstClimCount() + " unique WST_ID and CLIM_ID combinations");
+    return acebsValid;
+  }
+
+  private List<DOMEHandler.DomeEntry> indexDome(DOMEFile dome) {
+    try {
+      return DOMEHandler.indexDomes(dome.getPath());
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "Unable to read DOME file " + dome.getPath(), ex);
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Check the DOMEs read from every DOME file, in file order. A DOME name or ID
+   * may appear more than once only if every DOME using it has the same content.
+   */
+  private boolean validateDomes(PrintWriter out, PrintWriter err, List<List<DOMEHandler.DomeEntry>> domes) {
+    boolean domesValid = true;
+    Map<String, byte[]> dids = new HashMap<>(200);
+    Map<String, byte[]> domeNames = new HashMap<>(200);
+    Set<String> sharedIds = new TreeSet<>();
+    Set<String> sharedNames = new TreeSet<>();
+    Set<String> unnamedIds = new TreeSet<>();
+    // Next we need to get the DOME IDs
+    out.println("\n------------------------------------------------------------------------");
+    out.println("Validating DOME files");
+    out.println("------------------------------------------------------------------------\n");
+    out.println("Checking " + domeFiles.size() + " DOME files...\n");
+    domes.forEach((index) -> index.forEach((dome) -> {
+      byte[] digest = dids.putIfAbsent(dome.getId(), dome.getDigest());
+      if (digest != null && !Arrays.equals(digest, dome.getDigest())) {
+        sharedIds.add(dome.getId());
+      }
+      if (dome.getName().isPresent()) {
+        // The same DOME may be repeated across files, even under another
+        // ID, but a name must not be used by DOMEs with different content.
+        String name = dome.getName().get();
+        byte[] named = domeNames.putIfAbsent(name, dome.getDigest());
+        if (named != null && !Arrays.equals(named, dome.getDigest())) {
+          sharedNames.add(name);
+        }
+      } else {
+        unnamedIds.add(dome.getId());
+      }
+    }));
+    out.println("Found " + dids.size() + " unique DOME IDs");
+    out.println("Found " + domeNames.size() + " unique DOME Names");
+    if (!sharedNames.isEmpty()) {
+      err.println("[FAILED] More than one DOME share the same name with different values.");
+      err.println("         Please check the DOME metadata. Make each unique by using the DESCRIPTION field.");
+      sharedNames.forEach((name) -> err.println("           " + name));
+      domesValid = false;
+    }
+    if (!sharedIds.isEmpty()) {
+      err.println("[FAILED] More than one DOME share the same ID with different values.");
+      sharedIds.forEach((id) -> err.println("           " + id));
+      domesValid = false;
+    }
+    if (!unnamedIds.isEmpty()) {
+      err.println("[FAILED] Some DOMEs have no info block to name them.");
+      unnamedIds.forEach((id) -> err.println("           " + id));
+      domesValid = false;
+    }
+    return domesValid;
+  }
+
+  private StageOutput checkLinkage(ACMOFile path, LinkageIndex index) {
+    StageOutput output = new StageOutput();
+    String cm = path.getCMSeries().orElse("");
+    if (cm.equals("C3MP") || cm.equals("CTWN")) {
+      output.out.println("- Skipping senstivity analysis linkage checking on " + path.getPath().toString() + "\n");
+    } else if (!isFormatValid(path)) {
+      output.err.println("- Skipping invalid ACMO file " + path.getPath().toString() + "\n");
+    } else if (quickValidation) {
+      output.passed = LinkChecker.checkSampledLinkedData(path.getPath(), output.out, output.err, index,
+          quickValidationSamples, new Random(), fileErrorLimit);
+    } else {
+      output.passed = LinkChecker.checkLinkedData(path.getPath(), output.out, output.err, index, executor,
+          fileErrorLimit, failFast);
+    }
+    return output;
+  }
+
+  /**
+   * Check the format of an ACMO file, in full or by sampling it.
+   */
+  private boolean isFormatValid(ACMOFile acmo) {
+    if (quickValidation) {
+      return acmo.quickCheck(quickValidationSamples).isValid();
+    }
+    return acmo.isValid();
+  }
+
+  /**
+   * Holds the console output of a validation stage that ran on the executor,
+   * so it can be written out in the same order as a serial run.
+   */
+  private static class StageOutput {
+    final StringWriter outText = new StringWriter();
+    final StringWriter errText = new StringWriter();
+    final PrintWriter out = new PrintWriter(outText);
+    final PrintWriter err = new PrintWriter(errText);
+    boolean passed = true;
+
+    /**
+     * @param withErrors {@code false} to leave out the error output, for a
+     *   failure past the dataset's error limit
+     */
+    void writeTo(PrintWriter out, PrintWriter err, boolean withErrors) {
+      this.out.flush();
+      this.err.flush();
+      out.print(outText.toString());
+      out.flush();
+      if (withErrors) {
+        err.print(errText.toString());
+        err.flush();
+      }
+    }
+  }
+
   public void packageDataset(Path zipFile) {
     packageDataset(zipFile, "");
   }
 
-  public void packageDataset(Path zipFile, String rootDir, Path... additionalFiles) {
-    try (FileSystem zipFS = ZipFS.createZipFileSystem(zipFile.toString(), true)) {
-      Path root = zipFS.getPath(rootDir);
-      for (Path add : additionalFiles) {
-        Path d = root.resolve(add.getFileName().toString());
-        Path p = d.getParent();
-        if (Files.notExists(p)) {
-          Files.createDirectories(p);
+  public synchronized void packageDataset(Path zipFile, String rootDir, Path... additionalFiles) {
+    if (!incrementalPackaging) {
+      try (ZipPackageWriter zip = new ZipPackageWriter(FileChannel.open(zipFile, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), executor)) {
+        writePackage(zip, rootDir, false, null, additionalFiles);
+      } catch (IOException ex) {
+        LOG.log(Level.SEVERE, null, ex);
+        try {
+          Files.deleteIfExists(zipFile);
+        } catch (IOException e) {
+          LOG.log(Level.FINE, null, e);
         }
-        Files.copy(add, d, StandardCopyOption.REPLACE_EXISTING);
       }
+      return;
+    }
+    // The new package is written next to the previous one, which it reads
+    // from, and then replaces it.
+    Path target = zipFile.toAbsolutePath();
+    Path tmpFile = null;
+    try {
+      tmpFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+      try (ZipPackageReader previous = openPreviousPackage(target);
+          ZipPackageWriter zip = new ZipPackageWriter(FileChannel.open(tmpFile, StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING), executor)) {
+        writePackage(zip, rootDir, true, previous, additionalFiles);
+      }
+      Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    } finally {
+      if (tmpFile != null) {
+        try {
+          Files.deleteIfExists(tmpFile);
+        } catch (IOException ex) {
+          LOG.log(Level.FINE, null, ex);
+        }
+      }
+    }
+  }
 
-      Path aceOutput = root.resolve("dataset.aceb");
-      ACESeamer.seam(aceFiles, aceOutput);
+  private ZipPackageReader openPreviousPackage(Path zipFile) {
+    if (!Files.isRegularFile(zipFile)) {
+      return null;
+    }
+    try {
+      return new ZipPackageReader(zipFile);
+    } catch (IOException ex) {
+      LOG.log(Level.INFO, "Rebuilding {0}, it is not a readable package: {1}", new Object[]{zipFile, ex});
+      return null;
+    }
+  }
 
-      Path domeOutput = root.resolve("alldomes.dome");
-      DOMESeamer.seam(domeFiles, domeOutput);
+  /**
+   * Write the package to a stream in a single forward pass, without seeking
+   * or creating any files. The stream is flushed but not closed. There is no
+   * previous package to copy from, so the package is always built in full and
+   * carries no package manifest.
+   *
+   * @throws IOException if the package could not be completely written
+   */
+  public synchronized void packageDataset(OutputStream out, String rootDir, Path... additionalFiles)
+      throws IOException {
+    OutputStream target = new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
 
-      for (ACMOFile f : acmoFiles) {
-        if (f.isValid()) {
-          // Get the final path
-          Path dest = root.resolve("ACMOS");
-          if (f.getCMSeries().isPresent()) {
-            String s = f.getCMSeries().get();
-            if (s.equals("C3MP") || s.equals("CTWN")) {
-              dest = dest.resolve("SENSITIVITY");
-            } else {
-              dest = dest.resolve(s);
-            }
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+    try (ZipPackageWriter zip = new ZipPackageWriter(target, executor)) {
+      writePackage(zip, rootDir, false, null, additionalFiles);
+    }
+  }
+
+  /**
+   * Write the package to a channel in a single forward pass, without seeking
+   * or creating any files. The channel is not closed.
+   *
+   * @throws IOException if the package could not be completely written
+   */
+  public void packageDataset(WritableByteChannel channel, String rootDir, Path... additionalFiles)
+      throws IOException {
+    packageDataset(Channels.newOutputStream(channel), rootDir, additionalFiles);
+  }
+
+  /**
+   * Lay out every entry of the package, then write them. A file laid out
+   * under the same name as an earlier one replaces it; model specific files
+   * are renamed instead. Files packaged under a different name than their
+   * own, such as cleaned ACMO names and renamed model specific files, are
+   * listed in {@value #RENAME_MANIFEST} at the root of the package.
+   *
+   * When {@code incremental}, entries made from the same files as in the
+   * {@code previous} package, if there is one, are copied from it. When
+   * leaving out duplicates, only the first file with a given content is
+   * stored.
+   *
+   * If any entry cannot be written, {@code zip} is aborted so that it is
+   * closed without a central directory.
+   */
+  private void writePackage(ZipPackageWriter zip, String rootDir, boolean incremental,
+      ZipPackageReader previous, Path... additionalFiles) throws IOException {
+    try {
+      writeEntries(zip, rootDir, incremental, previous, additionalFiles);
+    } catch (IOException | RuntimeException ex) {
+      zip.abort();
+      throw ex;
+    }
+  }
+
+  private void writeEntries(ZipPackageWriter zip, String rootDir, boolean incremental,
+      ZipPackageReader previous, Path... additionalFiles) throws IOException {
+    String root = rootDir;
+    while (root.startsWith("/")) {
+      root = root.substring(1);
+    }
+    if (!root.isEmpty() && !root.endsWith("/")) {
+      root = root + "/";
+    }
+    String aceEntry = root + "dataset.aceb";
+    String domeEntry = root + "alldomes.dome";
+    Map<String, Path> files = new LinkedHashMap<>();
+    for (Path add : additionalFiles) {
+      files.put(root + add.getFileName().toString(), add);
+    }
+    files.remove(aceEntry);
+    files.remove(domeEntry);
+    String manifestEntry = root + PackageManifest.MANIFEST_ENTRY;
+    if (incremental) {
+      files.remove(manifestEntry);
+    }
+    String duplicatesEntry = root + PackageExtractor.DUPLICATES_MANIFEST;
+    if (deduplicatePackageFiles) {
+      files.remove(duplicatesEntry);
+    }
+
+    for (ACMOFile f : acmoFiles) {
+      if (f.isValid()) {
+        // Get the final path
+        String dest = root + "ACMOS/";
+        if (f.getCMSeries().isPresent()) {
+          String s = f.getCMSeries().get();
+          if (s.equals("C3MP") || s.equals("CTWN")) {
+            dest = dest + "SENSITIVITY/";
           } else {
-            dest.resolve("UNKNOWN");
-          }
-          Path fname = f.getCleanFilename().getFileName();
-          dest = dest.resolve(fname.toString());
-          Path parent = dest.getParent();
-          if (Files.notExists(parent)) {
-            Files.createDirectories(parent);
+            dest = dest + s + "/";
           }
-          Files.copy(f.getPath(), dest, StandardCopyOption.REPLACE_EXISTING);
-        } else {
-          LOG.log(Level.WARNING, "File {0} is invalid.", f.toString());
         }
+        files.put(dest + f.getCleanFilename().getFileName().toString(), f.getPath());
+      } else {
+        LOG.log(Level.WARNING, "File {0} is invalid.", f.toString());
       }
+    }
 
-      for (ModelSpecificFile f : modelFiles) {
-        Path dest = getUniqueName(root, f.getPath());
-        Files.copy(f.getPath(), dest, StandardCopyOption.REPLACE_EXISTING);
+    PackageNameRegistry names = new PackageNameRegistry();
+    names.add(aceEntry);
+    names.add(domeEntry);
+    if (incremental) {
+      names.add(manifestEntry);
+    }
+    if (deduplicatePackageFiles) {
+      names.add(duplicatesEntry);
+    }
+    files.keySet().forEach(names::add);
+    for (ModelSpecificFile f : modelFiles) {
+      files.put(names.addUnique(root, f.getPath().getFileName().toString()), f.getPath());
+    }
+
+    List<String[]> renames = new ArrayList<>();
+    files.forEach((name, source) -> {
+      if (!name.substring(name.lastIndexOf('/') + 1).equals(source.getFileName().toString())) {
+        renames.add(new String[]{getRelativeName(source), name});
       }
+    });
+
+    Set<String> dirs = new LinkedHashSet<>();
+    if (!root.isEmpty()) {
+      dirs.add(root);
+    }
+    files.keySet().forEach((name) -> {
+      for (int i = name.indexOf('/'); i != -1; i = name.indexOf('/', i + 1)) {
+        dirs.add(name.substring(0, i + 1));
+      }
+    });
+    PackageManifest manifest = null;
+    PackageManifest previousManifest = null;
+    if (incremental) {
+      previousManifest = readPackageManifest(previous, manifestEntry);
+    }
+    if (incremental || deduplicatePackageFiles) {
+      manifest = describePackage(aceEntry, domeEntry, files,
+          previousManifest == null ? new PackageManifest() : previousManifest);
+    }
+
+    for (String dir : dirs) {
+      zip.putDirectory(dir);
+    }
+    if (!copyUnchanged(zip, aceEntry, manifest, previous, previousManifest)) {
+      zip.putCompressedEntry(aceEntry, (out) -> ACESeamer.seam(aceFiles, out));
+    }
+    if (!copyUnchanged(zip, domeEntry, manifest, previous, previousManifest)) {
+      zip.putCompressedEntry(domeEntry, (out) -> DOMESeamer.seam(domeFiles, out));
+    }
+    Map<String, String> stored = new HashMap<>();
+    List<String[]> duplicates = new ArrayList<>();
+    for (Map.Entry<String, Path> file : files.entrySet()) {
+      if (deduplicatePackageFiles) {
+        String hash = manifest.getSources(file.getKey()).get(0).getHash();
+        String original = stored.putIfAbsent(hash, file.getKey());
+        if (original != null) {
+          duplicates.add(new String[]{file.getKey(), original});
+          continue;
+        }
+      }
+      if (!copyUnchanged(zip, file.getKey(), manifest, previous, previousManifest)) {
+        zip.putFile(file.getKey(), file.getValue());
+      }
+    }
+    if (!duplicates.isEmpty()) {
+      zip.putEntry(duplicatesEntry, (out) -> {
+        CSVWriter writer = new CSVWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.writeNext(new String[]{"entry", "same_as"});
+        duplicates.forEach(writer::writeNext);
+        writer.flush();
+      });
+    }
+    if (!renames.isEmpty()) {
+      zip.putEntry(names.addUnique(root, RENAME_MANIFEST), (out) -> {
+        CSVWriter writer = new CSVWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.writeNext(new String[]{"original", "packaged"});
+        renames.forEach(writer::writeNext);
+        writer.flush();
+      });
+    }
+    if (incremental) {
+      zip.putEntry(manifestEntry, manifest::write);
+    }
+  }
+
+  private static PackageManifest readPackageManifest(ZipPackageReader previous, String manifestEntry) {
+    if (previous == null || previous.getEntry(manifestEntry) == null) {
+      return null;
+    }
+    try {
+      return PackageManifest.read(previous.readEntry(previous.getEntry(manifestEntry)));
     } catch (IOException ex) {
-      LOG.log(Level.SEVERE, null, ex);
+      LOG.log(Level.INFO, "Ignoring unreadable package manifest: {0}", ex);
+      return null;
     }
   }
 
-  private Path getUniqueName(Path root, Path file) {
-    String fileName = file.getFileName().toString();
-    Path dest = root.resolve(fileName);
-    if (Files.exists(dest)) {
-      String baseFileName;
-      String fileNameExt;
-      int baseIndex = fileName.indexOf(".");
-      if (baseIndex == -1) {
-        baseFileName = fileName;
-        fileNameExt = "";
-      } else {
-        baseFileName = fileName.substring(0, baseIndex);
-        fileNameExt = fileName.substring(baseIndex);
+  /**
+   * Describe the files each entry is made from, hashing them on the executor
+   * if there is one. Hashes are reused from {@code known} for files whose
+   * size and last modified time have not changed.
+   */
+  private PackageManifest describePackage(String aceEntry, String domeEntry, Map<String, Path> files,
+      PackageManifest known) throws IOException {
+    Map<Path, CompletableFuture<PackageManifest.Source>> described = new HashMap<>();
+    List<Path> sources = new ArrayList<>();
+    aceFiles.forEach((f) -> sources.add(f.getPath()));
+    domeFiles.forEach((f) -> sources.add(f.getPath()));
+    sources.addAll(files.values());
+    try {
+      for (Path source : sources) {
+        described.computeIfAbsent(source, (path) -> {
+          Supplier<PackageManifest.Source> describe = () -> {
+            try {
+              return known.describe(path, getRelativeName(path));
+            } catch (IOException ex) {
+              throw new CompletionException(ex);
+            }
+          };
+          return executor == null ? CompletableFuture.completedFuture(describe.get())
+              : CompletableFuture.supplyAsync(describe, executor);
+        });
       }
-      int i=0;
-      while(Files.exists(dest)) {
-        i++;
-        String newFileName = baseFileName + "_" + i + fileNameExt;
-        dest = root.resolve(newFileName);
+      PackageManifest manifest = new PackageManifest();
+      List<PackageManifest.Source> aceSources = new ArrayList<>();
+      aceFiles.forEach((f) -> aceSources.add(described.get(f.getPath()).join()));
+      manifest.put(aceEntry, aceSources);
+      List<PackageManifest.Source> domeSources = new ArrayList<>();
+      domeFiles.forEach((f) -> domeSources.add(described.get(f.getPath()).join()));
+      manifest.put(domeEntry, domeSources);
+      files.forEach((name, source) -> manifest.put(name, Collections.singletonList(described.get(source).join())));
+      return manifest;
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
       }
+      throw ex;
     }
-    return dest;
+  }
+
+  /**
+   * Copy an entry from the previous package if it is made from the same files.
+   */
+  private static boolean copyUnchanged(ZipPackageWriter zip, String name, PackageManifest manifest,
+      ZipPackageReader previous, PackageManifest previousManifest) throws IOException {
+    if (previousManifest == null || previous.getEntry(name) == null
+        || !previousManifest.isUnchanged(name, manifest.getSources(name))) {
+      return false;
+    }
+    LOG.log(Level.FINE, "Copying unchanged entry {0}", name);
+    zip.putRawEntry(name, previous, previous.getEntry(name));
+    return true;
+  }
+
+  /**
+   * The name of a file relative to the dataset directory, with forward
+   * slashes.
+   */
+  private String getRelativeName(Path file) {
+    Path name = (basedir != null && file.startsWith(basedir)) ? basedir.relativize(file) : file;
+    return name.toString().replace(File.separatorChar, '/');
   }
 }
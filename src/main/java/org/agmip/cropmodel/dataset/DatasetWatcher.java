@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches a dataset directory and its subdirectories, and passes the changed
+ * paths to the dataset in batches. A batch is applied once no new events have
+ * arrived for {@link #QUIET_PERIOD_MS}, or at the latest
+ * {@link #MAX_BATCH_DELAY_MS} after its first event, so a burst of thousands
+ * of files is applied as a handful of updates.
+ */
+class DatasetWatcher implements Runnable {
+
+  static final long QUIET_PERIOD_MS = 500L;
+  static final long MAX_BATCH_DELAY_MS = 5000L;
+  private static final Logger LOG = Logger.getLogger(DatasetWatcher.class.getName());
+  private final CropModelDataset dataset;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> keys = new HashMap<>();
+  private final Set<Path> pending = new LinkedHashSet<>();
+  private final Thread thread;
+  private volatile boolean closed = false;
+  private boolean overflow = false;
+
+  DatasetWatcher(CropModelDataset dataset, Path basedir) throws IOException {
+    this.dataset = dataset;
+    this.watchService = basedir.getFileSystem().newWatchService();
+    this.thread = new Thread(this, "dataset-watcher-" + basedir.getFileName());
+    this.thread.setDaemon(true);
+    registerAll(basedir, false);
+  }
+
+  void start() {
+    this.thread.start();
+  }
+
+  void close() {
+    this.closed = true;
+    try {
+      this.watchService.close();
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, null, ex);
+    }
+  }
+
+  @Override
+  public void run() {
+    long batchStart = 0L;
+    try {
+      while (!closed) {
+        WatchKey key;
+        if (pending.isEmpty() && !overflow) {
+          key = watchService.take();
+          batchStart = System.currentTimeMillis();
+        } else {
+          key = watchService.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+        if (key != null) {
+          collect(key);
+        }
+        if (key == null || System.currentTimeMillis() - batchStart >= MAX_BATCH_DELAY_MS) {
+          flush();
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException ex) {
+      // The dataset stopped watching.
+    }
+  }
+
+  private void collect(WatchKey key) {
+    Path dir = keys.get(key);
+    if (dir == null) {
+      key.cancel();
+      return;
+    }
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        overflow = true;
+        continue;
+      }
+      Path child = dir.resolve((Path) event.context());
+      if (child.getFileName().toString().startsWith(".")) {
+        continue;
+      }
+      if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+        if (event.kind() == ENTRY_CREATE) {
+          // Files may be written before the new directory is registered, so
+          // pick up everything that is already in it.
+          try {
+            registerAll(child, true);
+          } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Unable to watch " + child, ex);
+            overflow = true;
+          }
+        }
+        // Other events on a directory that is still there only mean its
+        // contents or attributes changed, its files report their own events.
+      } else {
+        pending.add(child);
+      }
+    }
+    if (!key.reset()) {
+      keys.remove(key);
+    }
+  }
+
+  private void flush() {
+    if (closed || (pending.isEmpty() && !overflow)) {
+      return;
+    }
+    dataset.applyChanges(new ArrayList<>(pending), overflow);
+    pending.clear();
+    overflow = false;
+  }
+
+  private void registerAll(Path start, boolean addFiles) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (dir.getFileName().toString().startsWith(".")) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (addFiles && !file.getFileName().toString().startsWith(".")) {
+          pending.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -28,28 +28,42 @@
  */
 package org.agmip.cropmodel.dataset.filetype;
 
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
-import com.opencsv.CSVReader;
 import java.util.regex.Matcher;
 import org.agmip.cropmodel.dataset.Constants;
-import static org.agmip.cropmodel.dataset.Constants.DATE_FORMAT;
-import org.joda.time.LocalDate;
+import org.agmip.cropmodel.dataset.util.DateValidator;
+import org.agmip.cropmodel.dataset.util.DiagnosticLog;
+import org.agmip.cropmodel.dataset.util.FileFingerprint;
 
 public class ACMOFile extends CropModelFile {
 
   private static final Logger LOG = Logger.getLogger(ACMOFile.class.getName());
   private static final String[] CAPTURE_COLUMNS = {"reg_id", "clim_id", "man_id", "rap_id", "crop_model"};
   private static final String[] MULTI_VALUE_COLUMNS = {"crid_text", "wst_id"};
+  // Positions in the projection read by ingest()
+  private static final int EXNAME_VALUE = 0;
+  private static final int CAPTURE_VALUES = 1;
+  private static final int MULTI_VALUES = CAPTURE_VALUES + CAPTURE_COLUMNS.length;
+  private static final int DATE_VALUES = MULTI_VALUES + MULTI_VALUE_COLUMNS.length;
+  private static final String INVALID_DATE = "Invalid date";
+  private static final String CROP_FAILURE = "Suspected crop failure";
   private StringBuilder errors = new StringBuilder(1024);
   private StringBuilder warnings = new StringBuilder(1024);
   private Optional<String[]> header;
@@ -61,23 +75,62 @@ public class ACMOFile extends CropModelFile {
   private Optional<String> cropModel;
   private final Set<String> weatherIds;
   private final Set<String> crops;
+  private boolean formatValid = false;
+  private FileFingerprint fingerprint = null;
   private Path filename = null;
+  private volatile ExecutorService executor = null;
+  private int errorLimit = DiagnosticLog.UNLIMITED;
+  private boolean failFast = false;
+  private ACMOQuickCheck quickCheck = null;
+  private FileFingerprint quickFingerprint = null;
+  private int quickSamples = 0;
 
   public ACMOFile(Path path) {
+    this(path, null);
+  }
+
+  /**
+   * Read an ACMO file, checking the ranges of a large file in parallel.
+   *
+   * @param path the ACMO file
+   * @param executor the executor to check ranges on, or {@code null} to read
+   *   the file on this thread
+   */
+  public ACMOFile(Path path, ExecutorService executor) {
     super(path);
-    cmSeries = Optional.empty();
-    regionId = Optional.empty();
-    climateId = Optional.empty();
-    RAPId = Optional.empty();
-    managementId = Optional.empty();
-    cropModel = Optional.empty();
     weatherIds = new HashSet<>();
     crops = new HashSet<>();
-    loadHeader();
-    if (this.header.isPresent()) {
-      loadMultiValues();
-      checkCMSeries();
-    }
+    this.executor = executor;
+    ingest();
+  }
+
+  /**
+   * Restore an ACMO file from the metadata of an earlier read, without
+   * reading the file. The file is read when it is first validated.
+   *
+   * @param path the ACMO file
+   * @param header the header row, or {@code null} if none was found
+   * @param cmSeries the CM series, or {@code null} if it was not determined
+   * @param metadata the values of the captured metadata columns, as returned
+   *   by {@link #getMetadata()}
+   * @param crops the crops found in the file
+   * @param weatherIds the weather station IDs found in the file
+   */
+  public ACMOFile(Path path, String[] header, String cmSeries, Map<String, String> metadata,
+      Collection<String> crops, Collection<String> weatherIds) {
+    super(path);
+    this.weatherIds = new HashSet<>();
+    this.weatherIds.addAll(weatherIds);
+    this.crops = new HashSet<>();
+    this.crops.addAll(crops);
+    this.header = Optional.ofNullable(header);
+    this.cmSeries = Optional.ofNullable(cmSeries);
+    this.regionId = blankOrNull(metadata.get("reg_id"));
+    this.climateId = blankOrNull(metadata.get("clim_id"));
+    this.managementId = blankOrNull(metadata.get("man_id"));
+    this.RAPId = blankOrNull(metadata.get("rap_id"));
+    this.cropModel = blankOrNull(metadata.get("crop_model"));
+    clearErrorReport();
   }
 
   @Override
@@ -85,13 +138,69 @@ public class ACMOFile extends CropModelFile {
     return CropModelFileType.ACMO;
   }
 
+  /**
+   * Set the executor used to check the ranges of a large file in parallel
+   * when the file is next read.
+   *
+   * @param executor the executor to use, or {@code null} to read serially
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Set how many errors, and how many warnings, the reports of this file
+   * list. The rest are only counted. A changed limit reads the file again
+   * when it is next validated.
+   *
+   * @param errorLimit the number of errors and of warnings to list, or
+   *   {@link DiagnosticLog#UNLIMITED} (the default) to list them all
+   */
+  public synchronized void setErrorLimit(int errorLimit) {
+    if (errorLimit < 0) {
+      throw new IllegalArgumentException("Negative error limit: " + errorLimit);
+    }
+    if (this.errorLimit != errorLimit) {
+      this.errorLimit = errorLimit;
+      this.fingerprint = null;
+      this.quickCheck = null;
+    }
+  }
+
+  /**
+   * Stop reading this file at the first invalid data line. The file is then
+   * only known to be invalid, and the crops and weather stations after the
+   * failure are not read. A changed setting reads the file again when it is
+   * next validated.
+   *
+   * @param failFast {@code true} to stop at the first failure
+   */
+  public synchronized void setFailFast(boolean failFast) {
+    if (this.failFast != failFast) {
+      this.failFast = failFast;
+      this.fingerprint = null;
+      this.quickCheck = null;
+    }
+  }
+
+  /**
+   * Return the validation result from the last read of this file. The file is
+   * only read again if its size or last modified time has changed.
+   */
   @Override
-  public boolean isValid() {
-    if (header.isPresent() && cmSeries.isPresent()) {
-      return checkFormat();
-    } else {
-      return false;
+  public synchronized boolean isValid() {
+    if (fingerprint == null || fingerprint.isStale(this.path)) {
+      ingest();
     }
+    return header.isPresent() && cmSeries.isPresent() && formatValid;
+  }
+
+  /**
+   * Re-read and re-validate this file, even if it has not changed.
+   */
+  public synchronized boolean revalidate() {
+    ingest();
+    return header.isPresent() && cmSeries.isPresent() && formatValid;
   }
 
   public String getErrorReport() {
@@ -104,11 +213,15 @@ public class ACMOFile extends CropModelFile {
 
   public void clearErrorReport() {
     this.errors = new StringBuilder(1024);
-    if (null == this.header || !this.header.isPresent()) {
-      this.errors.append("         No header row found.\n");
+    appendMissing(this.errors, this.header, this.cmSeries);
+  }
+
+  private static void appendMissing(StringBuilder report, Optional<String[]> header, Optional<String> cmSeries) {
+    if (null == header || !header.isPresent()) {
+      report.append("         No header row found.\n");
     }
-    if (null == this.cmSeries || !this.cmSeries.isPresent()) {
-      this.errors.append("         Unable to determine the Crop Model Excersize for this ACMO.\n");
+    if (null == cmSeries || !cmSeries.isPresent()) {
+      report.append("         Unable to determine the Crop Model Excersize for this ACMO.\n");
     }
   }
 
@@ -116,14 +229,40 @@ public class ACMOFile extends CropModelFile {
     this.warnings = new StringBuilder(1024);
   }
 
-  public Optional<String[]> getHeader() {
+  public synchronized Optional<String[]> getHeader() {
     return this.header;
   }
 
-  public Optional<String> getCMSeries() {
+  public synchronized Optional<String> getCMSeries() {
     return this.cmSeries;
   }
 
+  /**
+   * Get the metadata captured from the first data line, keyed by the lower
+   * case column name. Blank columns are left out.
+   */
+  public synchronized Map<String, String> getMetadata() {
+    Map<String, String> metadata = new LinkedHashMap<>();
+    regionId.ifPresent((v) -> metadata.put("reg_id", v));
+    climateId.ifPresent((v) -> metadata.put("clim_id", v));
+    managementId.ifPresent((v) -> metadata.put("man_id", v));
+    RAPId.ifPresent((v) -> metadata.put("rap_id", v));
+    cropModel.ifPresent((v) -> metadata.put("crop_model", v));
+    return metadata;
+  }
+
+  /**
+   * Get a copy of the crops found in the file, a validation running on the
+   * executor may refill the live set at any time.
+   */
+  public synchronized Set<String> getCrops() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(this.crops));
+  }
+
+  public synchronized Set<String> getWeatherIds() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(this.weatherIds));
+  }
+
   public Path getCleanFilename() {
     return getCleanFilename(false, false);
   }
@@ -132,7 +271,7 @@ public class ACMOFile extends CropModelFile {
     return getCleanFilename(fixShadow, false);
   }
 
-  public Path getCleanFilename(boolean fixShadow, boolean generate) {
+  public synchronized Path getCleanFilename(boolean fixShadow, boolean generate) {
     if (generate || this.filename == null) {
       boolean sensitivty = false;
       if (cmSeries.isPresent()
@@ -191,342 +330,548 @@ public class ACMOFile extends CropModelFile {
     return this.filename;
   }
 
-  public boolean checkFormat() {
+  /**
+   * Re-read the ACMO file and check the format of every data line.
+   *
+   * @return {@code true} if the header is present and every date is valid
+   */
+  public synchronized boolean checkFormat() {
+    ingest();
+    return formatValid;
+  }
+
+  /**
+   * Check the header, the CM series and a sample of the data lines of this
+   * file, for a quick answer on a large file. The result is kept until the
+   * file changes or another number of samples is asked for.
+   *
+   * @param samples the number of data lines to draw at random
+   * @see #quickCheck(int, Random)
+   */
+  public synchronized ACMOQuickCheck quickCheck(int samples) {
+    if (quickCheck == null || quickSamples != samples
+        || quickFingerprint == null || quickFingerprint.isStale(this.path)) {
+      try {
+        quickFingerprint = FileFingerprint.of(this.path);
+      } catch (IOException ex) {
+        quickFingerprint = null;
+      }
+      quickCheck = quickCheck(samples, new Random());
+      quickSamples = samples;
+    }
+    return quickCheck;
+  }
+
+  /**
+   * Check the header, the CM series and a sample of the data lines of this
+   * file. The first and last data lines are always checked, and the other
+   * lines are drawn from equal byte ranges of the file, so a large file is
+   * checked without reading all of it. A file with little data is checked in
+   * full. The header, the CM series and the metadata read are returned with
+   * the result, and nothing found by the last full read is changed.
+   *
+   * @param samples the number of data lines to draw at random
+   * @param random the source of the lines drawn
+   * @see ACMORowSample
+   */
+  public synchronized ACMOQuickCheck quickCheck(int samples, Random random) {
+    return quickCheck(samples, random, ACMORowSample.FULL_CHECK_SIZE);
+  }
+
+  /**
+   * Check a sample of the data lines of this file, reading the data lines in
+   * full when there are at most {@code fullCheckSize} bytes of them.
+   *
+   * @see #quickCheck(int, Random)
+   */
+  synchronized ACMOQuickCheck quickCheck(int samples, Random random, long fullCheckSize) {
+    if (samples < 0) {
+      throw new IllegalArgumentException("Negative number of samples: " + samples);
+    }
+    Optional<String[]> quickHeader = Optional.empty();
+    Optional<String> quickCMSeries = Optional.empty();
+    Map<String, String> metadata = Collections.emptyMap();
+
+    boolean stopAtFailure = failFast;
+    RangeChecks checks = new RangeChecks(errorLimit);
+    ACMORowSample.Sample sample = null;
+    boolean readable = true;
+    try (ACMORowCursor rows = openRows()) {
+      while (rows.next()) {
+        if (rows.getMarker() == '#') {
+          quickHeader = Optional.of(rows.getHeader());
+          break;
+        }
+      }
+      if (quickHeader.isPresent()) {
+        String[] h = quickHeader.get();
+        List<Integer> dateColumns = getDateColumns(h);
+        int exnameCol = getColumn(h, "exname");
+        rows.project(getProjection(h, dateColumns));
+        sample = ACMORowSample.visit(rows, samples, random, fullCheckSize, checks, (c, row, line) -> {
+          checkRow(c, row, line, h, dateColumns);
+          return !(stopAtFailure && c.dateFails > 0L);
+        });
+        if (exnameCol != -1) {
+          if (checks.firstRow != null) {
+            metadata = extractMetadata(checks.firstRow);
+            quickCMSeries = Optional.of(classifyCMSeries(checks.firstRow));
+          } else {
+            quickCMSeries = Optional.of("C3MP");
+          }
+        }
+      }
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+      readable = false;
+    }
+
+    StringBuilder report = new StringBuilder(1024);
+    appendMissing(report, quickHeader, quickCMSeries);
+    DiagnosticLog<String> dateErrors = new DiagnosticLog<>(errorLimit);
+    dateErrors.addAll(checks.dateErrors, (error) -> error.toString(0L));
+    appendReport(report, dateErrors);
+    if (sample != null && sample.isStopped()) {
+      report.append("         Stopped checking this file at the first failure.\n");
+    }
+    StringBuilder warningReport = new StringBuilder();
+    DiagnosticLog<String> warningLog = new DiagnosticLog<>(errorLimit);
+    warningLog.addAll(checks.warnings, (warning) -> warning.toString(0L));
+    appendReport(warningReport, warningLog);
+    boolean valid = readable && quickHeader.isPresent() && quickCMSeries.isPresent() && checks.dateFails == 0L;
+    return new ACMOQuickCheck(valid, report.toString(), warningReport.toString(), sample, checks.dateFails,
+        quickHeader.orElse(null), quickCMSeries.orElse(null), metadata);
+  }
+
+  /**
+   * Open a cursor over the rows of this file.
+   *
+   * @param columns the names of the columns to decode
+   * @return a cursor before the first row, to be closed by the caller
+   * @see ACMORowCursor
+   */
+  public ACMORowCursor openRows(String... columns) throws IOException {
+    return openRows(this.path, columns);
+  }
+
+  /**
+   * Open a cursor over the rows of an ACMO file.
+   *
+   * @param path the ACMO file
+   * @param columns the names of the columns to decode
+   * @return a cursor before the first row, to be closed by the caller
+   * @see ACMORowCursor
+   */
+  public static ACMORowCursor openRows(Path path, String... columns) throws IOException {
+    return new ACMORowCursor(path, columns);
+  }
+
+  /**
+   * Read the whole ACMO file in a single pass. The header, the multi-value
+   * columns, the metadata, the CM series and the date checks are all filled
+   * in from the same cursor, which only decodes the columns they need. With
+   * an executor, the data lines of a large file are checked in ranges in
+   * parallel and the results merged in line order.
+   */
+  private void ingest() {
+    header = Optional.empty();
+    cmSeries = Optional.empty();
+    regionId = Optional.empty();
+    climateId = Optional.empty();
+    RAPId = Optional.empty();
+    managementId = Optional.empty();
+    cropModel = Optional.empty();
+    weatherIds.clear();
+    crops.clear();
+    filename = null;
+    formatValid = false;
+    clearWarnings();
+    try {
+      fingerprint = FileFingerprint.of(this.path);
+    } catch (IOException ex) {
+      fingerprint = null;
+    }
+
+    int limit = errorLimit;
+    boolean stopAtFailure = failFast;
+    DiagnosticLog<String> dateErrors = new DiagnosticLog<>(limit);
+    DiagnosticLog<String> warningLog = new DiagnosticLog<>(limit);
     boolean fmtErrors = false;
-    clearErrorReport();
-    if (this.header.isPresent()) {
-      //int headerLength = this.header.get().length;
-      List<Integer> dateColumns = getDateColumns();
-      try (CSVReader reader = new CSVReader(new FileReader(this.path.toFile()))) {
-        Optional<String[]> nextLine = Optional.ofNullable(reader.readNext());
-        long lineNum = 0L;
-        long dataLine = 0L;
-        long dateFail = 0L;
-        while (nextLine.isPresent()) {
-          //boolean lineError = false;
-          boolean dateError = false;
-          boolean cropFailWarn = false;
-          lineNum++;
-          String[] line = nextLine.get();
-          // This is currently acceptable, because Excel truncates missing lines
-          // The issue we need to check for is gaps or 12-30-0 errors.
-          // TODO: Check for 12-30-0 errors.
-          /*if (line.length != headerLength) {
-            lineError = true;
-            fmtErrors = true;
-            this.errors.append("Found ");
-            this.errors.append(line.length);
-            this.errors.append(" columns and expected ");
-            this.errors.append(headerLength);
-            this.errors.append(" on line ");
-            this.errors.append(lineNum);
-            this.errors.append("\n");
-          }*/
-          if (!line[0].equals("")) {
-            char token = (line[0].startsWith("\"")) ? line[0].charAt(1) : line[0].charAt(0);
-            if (token == '*') {
-              dataLine++;
-              StringBuilder errorLines = new StringBuilder("         Invalid date for ");
-              StringBuilder errorVals = new StringBuilder("(");
-              StringBuilder warningLines = new StringBuilder("          Suspected crop failure on ");
-              int errorsFound = 0;
-              for (Integer idx : dateColumns) {
-                try {
-                  if (!line[idx].equals("")) {
-                    try {
-                      LocalDate d = DATE_FORMAT.parseLocalDate(line[idx]);
-                    } catch (IllegalArgumentException ex) {
-
-                      errorsFound++;
-                      errorLines.append(this.header.get()[idx]);
-                      errorLines.append(", ");
-                      errorVals.append(line[idx]);
-                      errorVals.append(", ");
-                      dateError = true;
-                    }
-                  }
-                } catch (IndexOutOfBoundsException ex) {
-                  // This means that we have an issue here
-                  // Most likely a crop failure, but this is NOT
-                  // considered an error.
-                  cropFailWarn = true;
-                  break;
-                }
-              }
-              if (dateError) {
-                dateFail++;
-                fmtErrors = true;
-                errorLines.deleteCharAt(errorLines.lastIndexOf(","));
-                int evLast = errorVals.lastIndexOf(",");
-                errorVals.replace(evLast, evLast + 1, ")");
-                if (errorsFound > 1) {
-                  errorLines.insert(21, 's');
-                  errorLines.insert(errorLines.lastIndexOf(",") + 1, " and");
-                  if (errorsFound == 2) {
-                    errorLines.deleteCharAt(errorLines.lastIndexOf(","));
-                  }
-                }
-                errorLines.append(errorVals.toString());
-                errorLines.append("on line ");
-                errorLines.append(lineNum);
-                this.errors.append(errorLines.toString());
-                this.errors.append("\n");
-              }
-              if (cropFailWarn) {
-                warningLines.append("on line ");
-                warningLines.append(lineNum);
-                warningLines.append("\n");
-                this.warnings.append(warningLines.toString());
-              }
-            }
+    boolean stopped = false;
+    long dataLine = 0L;
+    long dateFail = 0L;
+    try (ACMORowCursor rows = openRows()) {
+      while (rows.next()) {
+        if (rows.getMarker() == '#') {
+          LOG.log(Level.FINE, "Header found on {0}", rows.getLineNumber());
+          header = Optional.of(rows.getHeader());
+          break;
+        }
+      }
+      if (header.isPresent()) {
+        String[] h = header.get();
+        List<Integer> dateColumns = getDateColumns(h);
+        int exnameCol = getColumn(h, "exname");
+        rows.project(getProjection(h, dateColumns));
+        List<ACMORowRanges.Range<RangeChecks>> ranges = ACMORowRanges.visit(rows, executor,
+            () -> new RangeChecks(limit), (checks, row, line) -> {
+              checkRow(checks, row, line, h, dateColumns);
+              return !(stopAtFailure && checks.dateFails > 0L);
+            });
+        String[] firstRow = null;
+        for (ACMORowRanges.Range<RangeChecks> range : ranges) {
+          RangeChecks checks = range.getResult();
+          if (firstRow == null) {
+            firstRow = checks.firstRow;
           }
-          nextLine = Optional.ofNullable(reader.readNext());
+          dataLine += checks.dataLines;
+          dateFail += checks.dateFails;
+          crops.addAll(checks.crops);
+          weatherIds.addAll(checks.weatherIds);
+          dateErrors.addAll(checks.dateErrors, (error) -> error.toString(range.getLineOffset()));
+          warningLog.addAll(checks.warnings, (warning) -> warning.toString(range.getLineOffset()));
+          stopped |= range.isStopped();
         }
-        if (dataLine == dateFail) {
-          this.clearErrorReport();
-          this.errors.append("         Date format incorrect on every data line in this file.");
+        appendReport(this.warnings, warningLog);
+        if (dateFail > 0L) {
+          fmtErrors = true;
         }
-      } catch (IOException ex) {
-        return false;
+        if (exnameCol != -1) {
+          if (firstRow != null) {
+            Map<String, String> metadata = extractMetadata(firstRow);
+            regionId = blankOrNull(metadata.get("reg_id"));
+            climateId = blankOrNull(metadata.get("clim_id"));
+            managementId = blankOrNull(metadata.get("man_id"));
+            RAPId = blankOrNull(metadata.get("rap_id"));
+            cropModel = blankOrNull(metadata.get("crop_model"));
+            cmSeries = Optional.of(classifyCMSeries(firstRow));
+          } else {
+            cmSeries = Optional.of("C3MP");
+          }
+        }
+      }
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+      clearErrorReport();
+      appendReport(this.errors, dateErrors);
+      return;
+    }
+
+    clearErrorReport();
+    if (header.isPresent()) {
+      if (stopped) {
+        appendReport(this.errors, dateErrors);
+        this.errors.append("         Stopped checking this file at the first failure.\n");
+      } else if (dataLine == dateFail) {
+        this.errors.append("         Date format incorrect on every data line in this file.");
+      } else {
+        appendReport(this.errors, dateErrors);
       }
     } else {
       // The format is incorrect if it has no header
       fmtErrors = true;
     }
-    // Now see if EVERY line has a date failure
-    return !fmtErrors;
-  }
-
-  private void loadHeader() {
-    loadHeader(false);
-  }
-
-  private void loadHeader(boolean recheck) {
-    if (recheck || null == this.header) {
-      try (CSVReader reader = new CSVReader(new FileReader(this.path.toFile()))) {
-        Optional<String[]> nextLine = Optional.ofNullable(reader.readNext());
-        long lineNum = 0L;
-        while (nextLine.isPresent()) {
-          lineNum++;
-          String[] line = nextLine.get();
-          if (!line[0].equals("")) {
-            char token = (line[0].startsWith("\"")) ? line[0].charAt(1) : line[0].charAt(0);
-            if (token == '#') {
-              LOG.log(Level.FINE, "Header found on {0}", lineNum);
-              this.header = nextLine;
-              break;
-            }
+    formatValid = !fmtErrors;
+  }
+
+  /**
+   * Append the listed lines of a report, and the counts if some were left
+   * out.
+   */
+  private static void appendReport(StringBuilder report, DiagnosticLog<String> log) {
+    log.getDiagnostics().forEach(report::append);
+    if (log.isTruncated()) {
+      report.append("         ");
+      report.append(log.getSummary());
+      report.append("\n");
+    }
+  }
+
+  /**
+   * What {@link #ingest()} finds in one range of data lines. Line numbers are
+   * counted within the range until the ranges are merged.
+   */
+  private static final class RangeChecks {
+    long dataLines = 0L;
+    long dateFails = 0L;
+    // The EXNAME and captured metadata of the first data line
+    String[] firstRow = null;
+    final Set<String> crops = new LinkedHashSet<>();
+    final Set<String> weatherIds = new LinkedHashSet<>();
+    final String[] previousMultiValues = new String[MULTI_VALUE_COLUMNS.length];
+    final DiagnosticLog<LineReport> dateErrors;
+    final DiagnosticLog<LineReport> warnings;
+
+    RangeChecks(int limit) {
+      Arrays.fill(previousMultiValues, "");
+      dateErrors = new DiagnosticLog<>(limit);
+      warnings = new DiagnosticLog<>(limit);
+    }
+  }
+
+  /**
+   * A report line that ends with a line number, or with the byte offset of a
+   * sampled line whose number is not known.
+   */
+  private static final class LineReport {
+    final String text;
+    final long line;
+
+    LineReport(String text, long line) {
+      this.text = text;
+      this.line = line;
+    }
+
+    String toString(long lineOffset) {
+      return text + (lineOffset + line) + "\n";
+    }
+  }
+
+  /**
+   * Check one line of a range. Only the range's own checks are changed, so
+   * ranges can be checked on several threads.
+   */
+  private void checkRow(RangeChecks checks, ACMORowCursor rows, long line, String[] header,
+      List<Integer> dateColumns) {
+    if (rows.getMarker() != '*') {
+      return;
+    }
+    checks.dataLines++;
+    if (checks.firstRow == null) {
+      checks.firstRow = new String[MULTI_VALUES];
+      for (int k = 0; k < MULTI_VALUES; k++) {
+        checks.firstRow[k] = getValue(rows, k);
+      }
+    }
+    loadMultiValues(rows, checks);
+    if (checkDates(rows, line, header, dateColumns, checks)) {
+      checks.dateFails++;
+    }
+  }
+
+  /**
+   * Check the date columns of a single data line.
+   *
+   * @return {@code true} if an invalid date was found on this line
+   */
+  private boolean checkDates(ACMORowCursor rows, long line, String[] header, List<Integer> dateColumns,
+      RangeChecks checks) {
+    boolean dateError = false;
+    boolean cropFailWarn = false;
+    // Only built for a line with a bad date that will be listed
+    StringBuilder errorLines = null;
+    StringBuilder errorVals = null;
+    int errorsFound = 0;
+    int columnCount = rows.getColumnCount();
+    for (int j = 0; j < dateColumns.size(); j++) {
+      int idx = dateColumns.get(j);
+      if (idx >= columnCount) {
+        // This means that we have an issue here
+        // Most likely a crop failure, but this is NOT
+        // considered an error.
+        cropFailWarn = true;
+        break;
+      }
+      CharSequence date = rows.get(DATE_VALUES + j);
+      if (date.length() != 0) {
+        int status = DateValidator.check(date);
+        if (status != DateValidator.VALID) {
+          if (status == DateValidator.APSIM_ZERO_DATE && LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "APSIM 12-30-0 date in {0} of {1}",
+                new Object[]{header[idx], this.path});
+          }
+          errorsFound++;
+          dateError = true;
+          if (checks.dateErrors.isFull()) {
+            continue;
           }
-          nextLine = Optional.ofNullable(reader.readNext());
+          if (errorLines == null) {
+            errorLines = new StringBuilder("         Invalid date for ");
+            errorVals = new StringBuilder("(");
+          }
+          errorLines.append(header[idx]);
+          errorLines.append(", ");
+          errorVals.append(date);
+          errorVals.append(", ");
         }
-      } catch (IOException ex) {
-        this.header = Optional.empty();
       }
-      if (null == this.header) {
-        this.errors.append("         No ACMO header found\n");
-        this.header = Optional.empty();
+    }
+    if (dateError && errorLines == null) {
+      // Only counted, so the text is not needed
+      checks.dateErrors.skip(INVALID_DATE);
+    } else if (dateError) {
+      errorLines.deleteCharAt(errorLines.lastIndexOf(","));
+      int evLast = errorVals.lastIndexOf(",");
+      errorVals.replace(evLast, evLast + 1, ")");
+      if (errorsFound > 1) {
+        errorLines.insert(21, 's');
+        errorLines.insert(errorLines.lastIndexOf(",") + 1, " and");
+        if (errorsFound == 2) {
+          errorLines.deleteCharAt(errorLines.lastIndexOf(","));
+        }
       }
+      errorLines.append(errorVals.toString());
+      errorLines.append(line < 0L ? "on the line at byte " : "on line ");
+      checks.dateErrors.add(INVALID_DATE, new LineReport(errorLines.toString(), position(rows, line)));
+    }
+    if (cropFailWarn) {
+      checks.warnings.add(CROP_FAILURE, new LineReport(line < 0L
+          ? "          Suspected crop failure on the line at byte " : "          Suspected crop failure on on line ",
+          position(rows, line)));
     }
+    return dateError;
   }
 
-  private List<Integer> getDateColumns() {
+  /**
+   * @return the line number, or the byte offset of a line whose number is
+   *   not known
+   */
+  private static long position(ACMORowCursor rows, long line) {
+    return (line < 0L) ? rows.getRowOffset() : line;
+  }
+
+  private static List<Integer> getDateColumns(String[] h) {
     List<Integer> colNum = new ArrayList<>();
-    if (header.isPresent()) {
-      String[] h = header.get();
-      int l = h.length;
-      for (int i = 0; i < l; i++) {
-        if (h[i].endsWith("DAT") || h[i].endsWith("DATE") || h[i].endsWith("DAT_S")) {
-          colNum.add(i);
-        }
+    int l = h.length;
+    for (int i = 0; i < l; i++) {
+      if (h[i].endsWith("DAT") || h[i].endsWith("DATE") || h[i].endsWith("DAT_S")) {
+        colNum.add(i);
       }
     }
     return colNum;
   }
 
-  private int getColumn(String columnName) {
+  private static int getColumn(String[] h, String columnName) {
     String cName = columnName.toUpperCase();
-    if (header.isPresent()) {
-      String[] h = header.get();
-      int l = h.length;
-      for (int i = 0; i < l; i++) {
-        if (h[i].toUpperCase().equals(cName)) {
-          return i;
-        }
+    int l = h.length;
+    for (int i = 0; i < l; i++) {
+      if (h[i].toUpperCase().equals(cName)) {
+        return i;
       }
     }
     return -1;
   }
 
-  private void loadMultiValues() {
+  /**
+   * The column positions read by {@link #ingest()}: the EXNAME, the captured
+   * metadata columns, the multi-value columns and then the date columns.
+   */
+  private static int[] getProjection(String[] h, List<Integer> dateColumns) {
+    int[] positions = new int[DATE_VALUES + dateColumns.size()];
+    positions[EXNAME_VALUE] = getColumn(h, "exname");
+    for (int i = 0; i < CAPTURE_COLUMNS.length; i++) {
+      positions[CAPTURE_VALUES + i] = getColumn(h, CAPTURE_COLUMNS[i]);
+    }
+    int[] multicols = getMultiValueColumns(h);
+    System.arraycopy(multicols, 0, positions, MULTI_VALUES, multicols.length);
+    for (int j = 0; j < dateColumns.size(); j++) {
+      positions[DATE_VALUES + j] = dateColumns.get(j);
+    }
+    return positions;
+  }
+
+  private static String getValue(ACMORowCursor rows, int k) {
+    CharSequence value = rows.get(k);
+    return (value == null) ? "" : value.toString();
+  }
+
+  private static String getCapturedValue(String[] firstRow, String colId) {
+    return firstRow[CAPTURE_VALUES + Arrays.asList(CAPTURE_COLUMNS).indexOf(colId)];
+  }
+
+  private static int[] getMultiValueColumns(String[] h) {
     int mvcLength = MULTI_VALUE_COLUMNS.length;
     int[] multicols = new int[mvcLength];
-    if (header.isPresent()) {
-      String[] h = header.get();
-      int l = h.length;
-      for (int j = 0; j < mvcLength; j++) {
-        String s = MULTI_VALUE_COLUMNS[j].toUpperCase();
-        for (int i = 0; i < l; i++) {
-          if (h[i].toUpperCase().equals(s)) {
-            multicols[j] = i;
-          }
+    int l = h.length;
+    for (int j = 0; j < mvcLength; j++) {
+      String s = MULTI_VALUE_COLUMNS[j].toUpperCase();
+      for (int i = 0; i < l; i++) {
+        if (h[i].toUpperCase().equals(s)) {
+          multicols[j] = i;
         }
       }
-      try (CSVReader reader = new CSVReader(new FileReader(this.path.toFile()))) {
-        Optional<String[]> nextLine;
-        while ((nextLine = Optional.ofNullable(reader.readNext())).isPresent()) {
-          String line[] = nextLine.get();
-          if (!line[0].equals("")) {
-            char token = (line[0].startsWith("\"")) ? line[0].charAt(1) : line[0].charAt(0);
-            if (token == '*') {
-              for (int i = 0; i < mvcLength; i++) {
-                String val = line[multicols[i]];
-                if (val != null && !val.equals("")) {
-                  switch (MULTI_VALUE_COLUMNS[i]) {
-                    case "crid_text":
-                      if (!crops.contains(val)) {
-                        crops.add(val);
-                      }
-                      break;
-                    case "wst_id":
-                      if (!weatherIds.contains(val)) {
-                        weatherIds.add(val);
-                      }
-                      break;
-                  }
-                }
-              }
-            }
-          }
-        }
-      } catch (IOException ex) {
-        LOG.log(Level.SEVERE, null, ex);
+    }
+    return multicols;
+  }
+
+  /**
+   * Add the multi-value columns of a data line. Consecutive lines mostly
+   * repeat the same values, so a value is only copied out of the line when it
+   * differs from the one on the previous line.
+   */
+  private void loadMultiValues(ACMORowCursor rows, RangeChecks checks) {
+    String[] previous = checks.previousMultiValues;
+    for (int i = 0; i < MULTI_VALUE_COLUMNS.length; i++) {
+      CharSequence val = rows.get(MULTI_VALUES + i);
+      if (val == null || val.length() == 0 || previous[i].contentEquals(val)) {
+        continue;
+      }
+      previous[i] = val.toString();
+      switch (MULTI_VALUE_COLUMNS[i]) {
+        case "crid_text":
+          checks.crops.add(previous[i]);
+          break;
+        case "wst_id":
+          checks.weatherIds.add(previous[i]);
+          break;
       }
     }
   }
 
-  private void checkCMSeries() {
-    try (CSVReader reader = new CSVReader(new FileReader(this.path.toFile()))) {
-      int exnameCol = getColumn("exname");
-      int climIdCol = getColumn("clim_id");
-      int manIdCol = getColumn("man_id");
-      int fenTotCol = getColumn("fen_tot");
-      int rapIdCol = getColumn("rap_id");
-
-      boolean fenDiff = false;
-
-      Optional<String> exnameBase = Optional.empty();
-      Optional<String> fenTotStart = Optional.empty();
-      Optional<String> manIdStart = Optional.empty();
-      //Optional<String> cm = Optional.empty();
-
-      Optional<String[]> nextLine;
-      if (exnameCol != -1) {
-        long lineNum = 0L;
-        long dataStartLine = -1L;
-        while (!cmSeries.isPresent() && (nextLine = Optional.ofNullable(reader.readNext())).isPresent()) {
-          lineNum++;
-          String[] line = nextLine.get();
-          if (!line[0].equals("")) {
-            char token = (line[0].startsWith("\"")) ? line[0].charAt(1) : line[0].charAt(0);
-            if (token == '*') {
-              if (dataStartLine == -1L) {
-                dataStartLine = lineNum;
-                extractMetadata(line);
-              }
-
-              String exname = line[exnameCol];
-              String climId = line[climIdCol];
-              String rapId = line[rapIdCol];
-              String manId = line[manIdCol];
-              String fenTot = line[fenTotCol];
-
-              if (!exnameBase.isPresent()) {
-                Matcher batchMatcher = Constants.BATCH_REGEX.matcher(exname);
-                if (batchMatcher.matches()) {
-                  exnameBase = Optional.of(batchMatcher.group(1));
-                } else {
-                  Matcher seasonalMatcher = Constants.SEASONAL_REGEX.matcher(exname);
-                  if (seasonalMatcher.matches()) {
-                    exnameBase = Optional.of(seasonalMatcher.group(1));
-                  } else {
-                    // This should be CM0 at this point.
-                    cmSeries = Optional.of("CM0");
-                    continue;
-                  }
-                }
-                // According to the AgMIP Protocols, using X as the last
-                // indicator means no scenarios.
-                if (climId.startsWith("0") && climId.endsWith("X")) {
-                  if (rapId.equals("")) {
-                    if (manId.equals("")) {
-                    cmSeries = Optional.of("CM1");
-                    } else {
-                      cmSeries = Optional.of("CM3");
-                    }
-                  } else {
-                    cmSeries = Optional.of("CM4");
-                  }
-                } else if (rapId.equals("")) {
-                    cmSeries = Optional.of("CM2");
-                } else if (manId.equals("")) {
-                  cmSeries = Optional.of("CM5");
-                } else {
-                  cmSeries = Optional.of("CM6");
-                }
-
-                if (!manIdStart.isPresent()) {
-                  manIdStart = blankOrNull(manId);
-                }
-
-                if (!fenTotStart.isPresent()) {
-                  fenTotStart = blankOrNull(fenTot);
-                } else if (!fenTotStart.get().equals(fenTot)) {
-                  fenDiff = true;
-                }
-              }
-            }
-          }
-        }
-        if (!cmSeries.isPresent()) {
-          if (fenDiff) {
-            cmSeries = Optional.of("CTWN");
-          } else {
-            cmSeries = Optional.of("C3MP");
-          }
+  /**
+   * Classify the CM series from the first data line.
+   */
+  private static String classifyCMSeries(String[] firstRow) {
+    String exname = firstRow[EXNAME_VALUE];
+    String climId = getCapturedValue(firstRow, "clim_id");
+    String rapId = getCapturedValue(firstRow, "rap_id");
+    String manId = getCapturedValue(firstRow, "man_id");
+
+    Matcher batchMatcher = Constants.BATCH_REGEX.matcher(exname);
+    if (!batchMatcher.matches()) {
+      Matcher seasonalMatcher = Constants.SEASONAL_REGEX.matcher(exname);
+      if (!seasonalMatcher.matches()) {
+        // This should be CM0 at this point.
+        return "CM0";
+      }
+    }
+    // According to the AgMIP Protocols, using X as the last
+    // indicator means no scenarios.
+    if (climId.startsWith("0") && climId.endsWith("X")) {
+      if (rapId.equals("")) {
+        if (manId.equals("")) {
+          return "CM1";
+        } else {
+          return "CM3";
         }
+      } else {
+        return "CM4";
       }
-    } catch (IOException ex) {
-      LOG.log(Level.SEVERE, null, ex);
+    } else if (rapId.equals("")) {
+      return "CM2";
+    } else if (manId.equals("")) {
+      return "CM5";
+    } else {
+      return "CM6";
     }
   }
 
   /**
    * Extract the ACMO meta data from the first line in the dataset.
    *
-   * @param line
+   * @param firstRow the EXNAME and captured columns of the first data line
+   * @return the values keyed as in {@link #getMetadata()}, without the blank
+   *   ones
    */
-  private void extractMetadata(String[] line) {
-    //"reg_id", "clim_id", "man_id", "crid_text", "rap_id", "crop_model"
+  private static Map<String, String> extractMetadata(String[] firstRow) {
+    Map<String, String> metadata = new LinkedHashMap<>();
     for (String colId : CAPTURE_COLUMNS) {
-      Optional<String> val = blankOrNull(line[getColumn(colId)]);
-      switch (colId) {
-        case "reg_id":
-          regionId = val;
-          break;
-        case "clim_id":
-          climateId = val;
-          break;
-        case "man_id":
-          managementId = val;
-          break;
-        case "rap_id":
-          RAPId = val;
-          break;
-        case "crop_model":
-          cropModel = val;
-          break;
+      String val = getCapturedValue(firstRow, colId);
+      if (val != null && !val.equals("")) {
+        metadata.put(colId, val);
       }
     }
+    return metadata;
   }
 
   private Optional<String> blankOrNull(String s) {
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.filetype;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The result of a quick check of an ACMO file, which only checks a sample of
+ * the data lines. A failed check means the file is invalid, but a passed
+ * check only means no problem was found in the lines checked.
+ *
+ * @see ACMOFile#quickCheck(int)
+ */
+public final class ACMOQuickCheck {
+  private final boolean valid;
+  private final String errorReport;
+  private final String warnings;
+  private final ACMORowSample.Sample sample;
+  private final long failedLines;
+  private final String[] header;
+  private final String cmSeries;
+  private final Map<String, String> metadata;
+
+  ACMOQuickCheck(boolean valid, String errorReport, String warnings, ACMORowSample.Sample sample,
+      long failedLines, String[] header, String cmSeries, Map<String, String> metadata) {
+    this.valid = valid;
+    this.errorReport = errorReport;
+    this.warnings = warnings;
+    this.sample = sample;
+    this.failedLines = failedLines;
+    this.header = header;
+    this.cmSeries = cmSeries;
+    this.metadata = metadata;
+  }
+
+  /**
+   * @return {@code true} if the header and CM series were found and every
+   *   data line checked is valid
+   */
+  public boolean isValid() {
+    return valid;
+  }
+
+  /**
+   * @return {@code true} if every data line was checked, so the result is
+   *   the same as a full check
+   */
+  public boolean isComplete() {
+    return sample != null && sample.isComplete();
+  }
+
+  public String getErrorReport() {
+    return errorReport;
+  }
+
+  public String getWarnings() {
+    return warnings;
+  }
+
+  public long getCheckedLines() {
+    return (sample == null) ? 0L : sample.getDataRows();
+  }
+
+  public long getFailedLines() {
+    return failedLines;
+  }
+
+  /**
+   * @return the header row read by the check
+   */
+  public Optional<String[]> getHeader() {
+    return Optional.ofNullable(header);
+  }
+
+  /**
+   * @return the CM series of the first data line read by the check
+   */
+  public Optional<String> getCMSeries() {
+    return Optional.ofNullable(cmSeries);
+  }
+
+  /**
+   * @return the metadata of the first data line read by the check
+   * @see ACMOFile#getMetadata()
+   */
+  public Map<String, String> getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * Describe how much of the file was checked, and for a passed check of a
+   * sample, the share of data lines that may still have problems. The bound
+   * is the 95% upper confidence limit for a share of zero failures in the
+   * lines drawn at random, about three divided by their number.
+   *
+   * @return for example "302 of about 1250000 data lines were checked. With
+   *   95% confidence, fewer than 1.00% of the data lines have problems."
+   */
+  public String getConfidence() {
+    if (sample == null) {
+      return "No data lines were checked.";
+    }
+    if (sample.isStopped()) {
+      return "Stopped at the first failure after checking " + sample.getDataRows() + " data lines.";
+    }
+    if (sample.isComplete()) {
+      return "All " + sample.getDataRows() + " data lines were checked.";
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(sample.getDataRows()).append(" of about ").append(sample.getEstimatedDataRows());
+    sb.append(" data lines were checked.");
+    if (failedLines > 0L) {
+      sb.append(" Problems were found in ").append(failedLines).append(" of them.");
+    }
+    double bound = 300.0 / sample.getDrawnRows();
+    if (valid && bound < 100.0) {
+      sb.append(" With 95% confidence, fewer than ");
+      sb.append(String.format(Locale.ROOT, "%.2f", bound));
+      sb.append("% of the data lines have problems.");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.filetype;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.agmip.cropmodel.dataset.util.MarkerLineScanner;
+
+/**
+ * Reads the rows of an ACMO file, decoding only a projection of its columns.
+ * The projected values of the current row are reusable {@link CharSequence}
+ * views that are only valid until the cursor moves on; call
+ * {@code toString()} on a value to keep it.
+ *
+ * <p>The projection is either a list of column names, matched against each
+ * header row ignoring case and surrounding whitespace, or a list of column
+ * positions set with {@link #project(int...)}. Row numbers count from the
+ * row the cursor started at.
+ */
+public final class ACMORowCursor implements Closeable {
+  private final Path path;
+  private final FileChannel channel;
+  private final MarkerLineScanner scanner;
+  private final Charset charset;
+  private final String[] names;
+  private final MarkerLineScanner.Field first;
+  private MarkerLineScanner.Field[] values = new MarkerLineScanner.Field[0];
+  private int[] columns = new int[0];
+  private boolean projected = false;
+  private String[] header = null;
+  private char marker = '\0';
+
+  ACMORowCursor(Path path, String... names) throws IOException {
+    this(path, 0L, names);
+  }
+
+  private ACMORowCursor(Path path, long offset, String... names) throws IOException {
+    this.path = path;
+    this.charset = Charset.defaultCharset();
+    this.names = names;
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.channel.position(offset);
+    this.scanner = new MarkerLineScanner(channel, offset);
+    this.scanner.setQuoteAware(true);
+    this.first = scanner.newField(charset);
+    // Named columns are missing until a header row is read
+    int[] missing = new int[names.length];
+    Arrays.fill(missing, -1);
+    setColumns(missing);
+  }
+
+  /**
+   * Open another cursor on the same file that starts at a row in the middle
+   * of it, with the projection of this one.
+   *
+   * @param offset the file offset of a row
+   * @param header the header in effect at that row
+   */
+  ACMORowCursor copyAt(long offset, String[] header) throws IOException {
+    ACMORowCursor copy = new ACMORowCursor(path, offset, names);
+    copy.header = header;
+    if (projected) {
+      copy.project(columns);
+    } else if (header != null && names.length > 0) {
+      copy.mapNames();
+    }
+    return copy;
+  }
+
+  /**
+   * Move to the next row. A header row also becomes the current header, and
+   * the projection names are matched against it.
+   *
+   * @return {@code false} at the end of the file
+   */
+  public boolean next() throws IOException {
+    if (!scanner.nextLine()) {
+      return false;
+    }
+    marker = '\0';
+    if (first.set(0) && first.length() > 0) {
+      char c = first.charAt(0);
+      if (c != '"') {
+        marker = c;
+      } else if (first.length() > 1) {
+        marker = first.charAt(1);
+      }
+    }
+    if (marker == '#') {
+      header = scanner.columns(charset);
+      if (!projected && names.length > 0) {
+        mapNames();
+      }
+    }
+    return true;
+  }
+
+  private void mapNames() {
+    for (int i = 0; i < names.length; i++) {
+      columns[i] = -1;
+      for (int k = 0; k < header.length; k++) {
+        if (header[k].trim().equalsIgnoreCase(names[i])) {
+          columns[i] = k;
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Project the given column positions instead of the named columns. The
+   * projection then stays fixed when later header rows are read.
+   *
+   * @param positions the column positions, -1 for a column that is missing
+   */
+  public void project(int... positions) {
+    projected = true;
+    setColumns(positions);
+  }
+
+  private void setColumns(int[] positions) {
+    columns = positions.clone();
+    if (values.length != positions.length) {
+      MarkerLineScanner.Field[] grown = Arrays.copyOf(values, positions.length);
+      for (int i = values.length; i < grown.length; i++) {
+        grown[i] = scanner.newField(charset);
+      }
+      values = grown;
+    }
+  }
+
+  /**
+   * Give up on a row longer than {@code maxRowLength} bytes; {@link #next()}
+   * then returns {@code false} and {@link #isRowTooLong()} {@code true}.
+   */
+  void setMaxRowLength(int maxRowLength) {
+    scanner.setMaxLineLength(maxRowLength);
+  }
+
+  boolean isRowTooLong() {
+    return scanner.isLineTooLong();
+  }
+
+  /**
+   * @return the file offset of the current row
+   */
+  public long getRowOffset() {
+    return scanner.getLineOffset();
+  }
+
+  /**
+   * @return the file offset of the row after the current one
+   */
+  public long getNextRowOffset() {
+    return scanner.getNextLineOffset();
+  }
+
+  /**
+   * @return the size of the file
+   */
+  long size() throws IOException {
+    return channel.size();
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the number of the current row, counting multi-line rows once
+   */
+  public long getLineNumber() {
+    return scanner.getLineNumber();
+  }
+
+  /**
+   * The marker of the current row: the first character of its first column,
+   * or the second if the first is a quote.
+   *
+   * @return {@code '#'}, {@code '*'}, {@code '!'} or any other marker, or
+   *   {@code '\0'} if the first column is empty
+   */
+  public char getMarker() {
+    return marker;
+  }
+
+  /**
+   * @return the last header row read, or {@code null} if none has been read
+   */
+  public String[] getHeader() {
+    return header;
+  }
+
+  /**
+   * @return the number of columns in the current row
+   */
+  public int getColumnCount() {
+    return scanner.getFieldCount();
+  }
+
+  /**
+   * @param k the position in the projection
+   * @return the column position of a projected column, or -1 if the header
+   *   does not have it
+   */
+  public int getColumn(int k) {
+    return columns[k];
+  }
+
+  /**
+   * @param k the position in the projection
+   * @return the value of a projected column in the current row, or
+   *   {@code null} if the header or the row does not have the column
+   */
+  public CharSequence get(int k) {
+    MarkerLineScanner.Field value = values[k];
+    return value.set(columns[k]) ? value : null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.filetype;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.agmip.cropmodel.dataset.util.MarkerLineScanner;
+
+/**
+ * Visits the remaining rows of an ACMO file, splitting large files into byte
+ * ranges that are visited in parallel. Each range gets its own result, and
+ * the ranges are returned in file order along with the row number they start
+ * after, so results can be merged as if the file had been read in one pass.
+ *
+ * <p>A range starts at the first line after its split point, on the guess
+ * that the line does not start inside a quoted field. The guess is checked
+ * once the range before it is done: when a row of that range ran past the
+ * split point, the range is visited again from where that row ended. A range
+ * is also visited again when the header changed in the range before it, or
+ * when one of its rows is longer than the range itself, which happens when
+ * it starts inside a quoted field and reads its quotes inside out. The
+ * calling thread visits the ranges no other thread has started, so ranges
+ * never wait on a busy executor.
+ *
+ * <p>A visitor can stop the visit at a row. The ranges after it are then
+ * abandoned, and only the ranges up to the one that stopped are returned.
+ */
+public final class ACMORowRanges {
+  private static final Logger LOG = Logger.getLogger(ACMORowRanges.class.getName());
+  /** Files with less than this many bytes left are read in one range. */
+  public static final long DEFAULT_RANGE_SIZE = 8L * 1024 * 1024;
+  // Rows up to this size are always read in a range that may not start on a row
+  private static final int MIN_ROW_LIMIT = 1024 * 1024;
+
+  private ACMORowRanges() {}
+
+  /**
+   * Visits the rows of one range.
+   *
+   * @param <R> the result of a range
+   */
+  public interface RowVisitor<R> {
+    /**
+     * @param result the result of the range the row is in
+     * @param rows the cursor on the row
+     * @param line the number of the row within its range, starting at 1
+     * @return {@code false} to stop visiting rows after this one
+     */
+    boolean visit(R result, ACMORowCursor rows, long line) throws IOException;
+  }
+
+  /**
+   * The result of visiting one range of rows.
+   *
+   * @param <R> the result of a range
+   */
+  public static final class Range<R> {
+    private final R result;
+    private final long start;
+    private final String[] startHeader;
+    private long end;
+    private String[] endHeader;
+    private long rowCount = 0L;
+    private long lineOffset = 0L;
+    private boolean stopped = false;
+    private boolean abandoned = false;
+    private boolean misaligned = false;
+
+    private Range(R result, long start, String[] header) {
+      this.result = result;
+      this.start = start;
+      this.startHeader = header;
+      this.end = start;
+      this.endHeader = header;
+    }
+
+    public R getResult() {
+      return result;
+    }
+
+    /**
+     * @return the row number of the file that this range starts after; add
+     *   it to a row number within the range to get the row number in the file
+     */
+    public long getLineOffset() {
+      return lineOffset;
+    }
+
+    /**
+     * @return {@code true} if the visitor stopped the visit in this range,
+     *   which is then the last range
+     */
+    public boolean isStopped() {
+      return stopped;
+    }
+  }
+
+  public static <R> List<Range<R>> visit(ACMORowCursor rows, ExecutorService executor,
+      Supplier<R> newResult, RowVisitor<R> visitor) throws IOException {
+    return visit(rows, executor, DEFAULT_RANGE_SIZE, newResult, visitor);
+  }
+
+  /**
+   * Visit the rows after the current row of a cursor.
+   *
+   * @param rows the cursor, which is left at the end of the file when the
+   *   rows are read in one range
+   * @param executor the executor to visit ranges on, or {@code null} to read
+   *   the rows in one range on this thread
+   * @param rangeSize the smallest range worth visiting on its own
+   * @param newResult creates the result of each range
+   * @param visitor called for each row
+   * @return the ranges in file order, up to the range the visit was stopped
+   *   in
+   */
+  public static <R> List<Range<R>> visit(ACMORowCursor rows, ExecutorService executor, long rangeSize,
+      Supplier<R> newResult, RowVisitor<R> visitor) throws IOException {
+    return visit(rows, executor, rangeSize, Runtime.getRuntime().availableProcessors(), newResult, visitor);
+  }
+
+  /**
+   * Visit the rows after the current row of a cursor, split for a given
+   * number of processors.
+   *
+   * @param processors the number of processors to split the file for
+   * @see #visit(ACMORowCursor, ExecutorService, long, Supplier, RowVisitor)
+   */
+  public static <R> List<Range<R>> visit(ACMORowCursor rows, ExecutorService executor, long rangeSize, int processors,
+      Supplier<R> newResult, RowVisitor<R> visitor) throws IOException {
+    long start = rows.getNextRowOffset();
+    long lineOffset = rows.getLineNumber();
+    String[] header = rows.getHeader();
+    long size = rows.size();
+    // A few ranges per processor even out ranges that take longer
+    long count = (executor == null || processors < 2) ? 1L
+        : Math.min(processors * 4L, (size - start) / Math.max(1L, rangeSize));
+    if (count <= 1L) {
+      Range<R> range = new Range<>(newResult.get(), start, header);
+      visitRange(range, rows, lineOffset, Long.MAX_VALUE, visitor, null);
+      range.lineOffset = lineOffset;
+      return Collections.singletonList(range);
+    }
+
+    long[] bounds = split(rows, start, size, (int) count);
+    List<RangeTask<R>> tasks = new ArrayList<>(bounds.length - 1);
+    // The first range a visitor stopped in, the ranges after it are abandoned
+    AtomicInteger stoppedAt = new AtomicInteger(Integer.MAX_VALUE);
+    for (int i = 0; i + 1 < bounds.length; i++) {
+      RangeTask<R> task = new RangeTask<>(rows, i, bounds[i], bounds[i + 1], header, newResult, visitor,
+          stoppedAt);
+      tasks.add(task);
+      if (i > 0) {
+        try {
+          executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+          // Visited on this thread below
+        }
+      }
+    }
+
+    List<Range<R>> ranges = new ArrayList<>(tasks.size());
+    long expected = start;
+    for (int i = 0; i < tasks.size(); i++) {
+      RangeTask<R> task = tasks.get(i);
+      task.run();
+      Range<R> range;
+      try {
+        range = task.done.join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof UncheckedIOException) {
+          throw ((UncheckedIOException) ex.getCause()).getCause();
+        }
+        throw ex;
+      }
+      if (range.abandoned || range.misaligned || range.start != expected || range.startHeader != header) {
+        // The range did not start on a row, or under the right header, or
+        // was abandoned after a range before it stopped too early
+        LOG.log(Level.FINE, "Visiting the range at {0} of {1} again from {2}",
+            new Object[]{range.start, rows.getPath(), expected});
+        range = new Range<>(newResult.get(), expected, header);
+        if (expected < task.end) {
+          try (ACMORowCursor copy = rows.copyAt(expected, header)) {
+            visitRange(range, copy, 0L, task.end, visitor, null);
+          }
+        }
+      }
+      range.lineOffset = lineOffset;
+      lineOffset += range.rowCount;
+      expected = range.end;
+      header = range.endHeader;
+      ranges.add(range);
+      if (range.stopped) {
+        // Let the ranges still queued or running know they are not needed
+        stoppedAt.accumulateAndGet(i, Math::min);
+        break;
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * Visit the rows that start before {@code end}.
+   *
+   * @param lineBase the row number of the cursor before the range
+   * @param abandon tells when the range is no longer needed, or {@code null}
+   *   to visit the whole range
+   */
+  private static <R> void visitRange(Range<R> range, ACMORowCursor rows, long lineBase, long end,
+      RowVisitor<R> visitor, BooleanSupplier abandon) throws IOException {
+    String[] header = rows.getHeader();
+    while (rows.next()) {
+      if (rows.getRowOffset() >= end) {
+        range.end = rows.getRowOffset();
+        range.endHeader = header;
+        return;
+      }
+      if (abandon != null && abandon.getAsBoolean()) {
+        range.abandoned = true;
+        return;
+      }
+      range.rowCount++;
+      boolean more = visitor.visit(range.result, rows, rows.getLineNumber() - lineBase);
+      header = rows.getHeader();
+      if (!more) {
+        range.stopped = true;
+        range.end = rows.getNextRowOffset();
+        range.endHeader = header;
+        return;
+      }
+    }
+    if (rows.isRowTooLong()) {
+      range.misaligned = true;
+      return;
+    }
+    range.end = rows.getNextRowOffset();
+    range.endHeader = header;
+  }
+
+  /**
+   * Split the file after {@code start} into about {@code count} ranges, each
+   * starting on the first line after its split point.
+   *
+   * @return the range bounds, starting with {@code start} and ending with
+   *   {@code size}
+   */
+  private static long[] split(ACMORowCursor rows, long start, long size, int count) throws IOException {
+    long[] bounds = new long[count + 1];
+    int n = 0;
+    bounds[n++] = start;
+    try (FileChannel channel = FileChannel.open(rows.getPath(), StandardOpenOption.READ)) {
+      for (int i = 1; i < count; i++) {
+        // Start one byte early, so a split point right after a line
+        // terminator starts its range there.
+        long point = start + (size - start) / count * i - 1;
+        channel.position(point);
+        // Whether the split point is inside quotes is not known here, so
+        // this only finds the next line terminator. A wrong guess is caught
+        // once the range before it is done.
+        MarkerLineScanner scanner = new MarkerLineScanner(channel, point);
+        scanner.nextLine();
+        long bound = scanner.getNextLineOffset();
+        if (bound > bounds[n - 1] && bound < size) {
+          bounds[n++] = bound;
+        }
+      }
+    }
+    bounds[n++] = size;
+    long[] trimmed = new long[n];
+    System.arraycopy(bounds, 0, trimmed, 0, n);
+    return trimmed;
+  }
+
+  /**
+   * Visits one range, either on the executor or on the calling thread,
+   * whichever gets to it first.
+   */
+  private static final class RangeTask<R> implements Runnable {
+    private final ACMORowCursor rows;
+    private final int index;
+    private final long start;
+    private final long end;
+    private final String[] header;
+    private final Supplier<R> newResult;
+    private final RowVisitor<R> visitor;
+    private final AtomicInteger stoppedAt;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private final CompletableFuture<Range<R>> done = new CompletableFuture<>();
+
+    RangeTask(ACMORowCursor rows, int index, long start, long end, String[] header, Supplier<R> newResult,
+        RowVisitor<R> visitor, AtomicInteger stoppedAt) {
+      this.rows = rows;
+      this.index = index;
+      this.start = start;
+      this.end = end;
+      this.header = header;
+      this.newResult = newResult;
+      this.visitor = visitor;
+      this.stoppedAt = stoppedAt;
+    }
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      Range<R> range = new Range<>(newResult.get(), start, header);
+      if (stoppedAt.get() < index) {
+        range.abandoned = true;
+        done.complete(range);
+        return;
+      }
+      try (ACMORowCursor copy = rows.copyAt(start, header)) {
+        if (index > 0) {
+          // A range that starts inside a quoted field can take the rest of
+          // the file for one row
+          copy.setMaxRowLength((int) Math.min(Integer.MAX_VALUE, Math.max(end - start, MIN_ROW_LIMIT)));
+        }
+        visitRange(range, copy, 0L, end, visitor, () -> stoppedAt.get() < index);
+        if (range.stopped) {
+          stoppedAt.accumulateAndGet(index, Math::min);
+        }
+        done.complete(range);
+      } catch (IOException ex) {
+        done.completeExceptionally(new UncheckedIOException(ex));
+      } catch (RuntimeException | Error ex) {
+        done.completeExceptionally(ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.filetype;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.agmip.cropmodel.dataset.util.MarkerLineScanner;
+
+/**
+ * Visits a sample of the remaining rows of an ACMO file: the rows up to the
+ * first data row, the last data row, and data rows drawn at random from
+ * equal byte ranges of the rest of the file. Files with little data are
+ * visited in full instead.
+ *
+ * <p>A drawn row starts at the first line after a random point that starts
+ * like a data row, on the guess that the line does not start inside a
+ * quoted field. The sample assumes every drawn row is under the header the cursor
+ * is at. Line numbers are only known for the rows up to the first data row,
+ * other rows are visited with a line number of -1.
+ */
+public final class ACMORowSample {
+  /** The number of rows drawn by default. */
+  public static final int DEFAULT_SAMPLES = 300;
+  /** Files with at most this many bytes of data rows are visited in full. */
+  public static final long FULL_CHECK_SIZE = 1024L * 1024;
+  // The end of the file read first to find the last data row
+  private static final long TAIL_SIZE = 64L * 1024;
+
+  private ACMORowSample() {}
+
+  /**
+   * What was visited.
+   */
+  public static final class Sample {
+    private long dataRows = 0L;
+    private long drawnRows = 0L;
+    private long drawnBytes = 0L;
+    private long sampledBytes = 0L;
+    private boolean complete = false;
+    private boolean stopped = false;
+
+    private Sample() {}
+
+    /**
+     * @return the number of data rows visited
+     */
+    public long getDataRows() {
+      return dataRows;
+    }
+
+    /**
+     * @return the number of data rows drawn at random, which excludes the
+     *   first and last data rows
+     */
+    public long getDrawnRows() {
+      return drawnRows;
+    }
+
+    /**
+     * @return {@code true} if every row was visited
+     */
+    public boolean isComplete() {
+      return complete;
+    }
+
+    /**
+     * @return {@code true} if the visitor stopped the visit
+     */
+    public boolean isStopped() {
+      return stopped;
+    }
+
+    /**
+     * @return the number of data rows in the file, estimated from the size
+     *   of the drawn rows
+     */
+    public long getEstimatedDataRows() {
+      if (complete || drawnRows == 0L) {
+        return dataRows;
+      }
+      return dataRows - drawnRows + Math.round((double) sampledBytes * drawnRows / drawnBytes);
+    }
+  }
+
+  /**
+   * Visit a sample of the rows after the current row of a cursor.
+   *
+   * @param rows the cursor, which is left somewhere in the file
+   * @param samples the number of data rows to draw
+   * @param random the source of the random points
+   * @param result passed to the visitor
+   * @param visitor called for each visited row
+   * @return what was visited
+   */
+  public static <R> Sample visit(ACMORowCursor rows, int samples, Random random, R result,
+      ACMORowRanges.RowVisitor<R> visitor) throws IOException {
+    return visit(rows, samples, random, FULL_CHECK_SIZE, result, visitor);
+  }
+
+  /**
+   * Visit a sample of the rows after the current row of a cursor, or all of
+   * them when there are at most {@code fullCheckSize} bytes of data rows.
+   *
+   * @see #visit(ACMORowCursor, int, Random, Object, ACMORowRanges.RowVisitor)
+   */
+  static <R> Sample visit(ACMORowCursor rows, int samples, Random random, long fullCheckSize, R result,
+      ACMORowRanges.RowVisitor<R> visitor) throws IOException {
+    Sample sample = new Sample();
+    String[] header = rows.getHeader();
+    // The rows up to the first data row, with their line numbers
+    boolean more = false;
+    while (rows.next()) {
+      if (!visit(sample, rows, rows.getLineNumber(), result, visitor)) {
+        return sample;
+      }
+      if (rows.getMarker() == '*') {
+        more = true;
+        break;
+      }
+    }
+    if (!more) {
+      sample.complete = true;
+      return sample;
+    }
+    long start = rows.getNextRowOffset();
+    long last = findLastDataRow(rows, start, header);
+    if (samples > 0 && last - start <= fullCheckSize) {
+      // Too little data to be worth sampling, read the rest in full
+      while (rows.next()) {
+        if (!visit(sample, rows, rows.getLineNumber(), result, visitor)) {
+          return sample;
+        }
+      }
+      sample.complete = true;
+      return sample;
+    }
+    if (samples > 0 && !draw(sample, rows, start, last, samples, random, result, visitor)) {
+      return sample;
+    }
+    if (last < rows.size()) {
+      try (ACMORowCursor copy = rows.copyAt(last, header)) {
+        if (copy.next()) {
+          visit(sample, copy, -1L, result, visitor);
+        }
+      }
+    }
+    return sample;
+  }
+
+  private static <R> boolean visit(Sample sample, ACMORowCursor rows, long line, R result,
+      ACMORowRanges.RowVisitor<R> visitor) throws IOException {
+    if (rows.getMarker() == '*') {
+      sample.dataRows++;
+    }
+    if (!visitor.visit(result, rows, line)) {
+      sample.stopped = true;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Visit the first data row after a random point of each of {@code samples}
+   * equal ranges between {@code start} and {@code end}.
+   *
+   * @return {@code false} if the visitor stopped the visit
+   */
+  private static <R> boolean draw(Sample sample, ACMORowCursor rows, long start, long end, int samples,
+      Random random, R result, ACMORowRanges.RowVisitor<R> visitor) throws IOException {
+    String[] header = rows.getHeader();
+    long visitedEnd = start;
+    sample.sampledBytes = end - start;
+    try (FileChannel channel = FileChannel.open(rows.getPath(), StandardOpenOption.READ)) {
+      long from = start;
+      for (int i = 0; i < samples; i++) {
+        // Split by share rather than by a whole stride, so the ranges reach the end
+        long to = start + (long) ((double) (end - start) * (i + 1) / samples);
+        long point = from + (long) (random.nextDouble() * (to - from));
+        long bound = nextDataLine(channel, point, to);
+        from = to;
+        if (bound < visitedEnd) {
+          // None in this range, or inside a row that was already visited
+          continue;
+        }
+        try (ACMORowCursor copy = rows.copyAt(bound, header)) {
+          if (!copy.next() || copy.getMarker() != '*') {
+            continue;
+          }
+          visitedEnd = copy.getNextRowOffset();
+          sample.drawnRows++;
+          sample.drawnBytes += visitedEnd - bound;
+          if (!visit(sample, copy, -1L, result, visitor)) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Find the start of the last data row, reading back from the end of the
+   * file until one is found.
+   *
+   * @return the offset of the last data row after {@code start}, or the
+   *   size of the file if there is none
+   */
+  private static long findLastDataRow(ACMORowCursor rows, long start, String[] header) throws IOException {
+    long size = rows.size();
+    try (FileChannel channel = FileChannel.open(rows.getPath(), StandardOpenOption.READ)) {
+      for (long tail = TAIL_SIZE; ; tail *= 2) {
+        long from = Math.max(start, size - tail);
+        if (from > start) {
+          from = nextLineOffset(channel, from);
+        }
+        long last = -1L;
+        try (ACMORowCursor copy = rows.copyAt(from, header)) {
+          while (copy.next()) {
+            if (copy.getMarker() == '*') {
+              last = copy.getRowOffset();
+            }
+          }
+        }
+        if (last >= 0L) {
+          return last;
+        }
+        if (from <= start) {
+          return size;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the offset of the first line that starts like a data row after
+   *   {@code point} and before {@code limit}, or -1 if there is none
+   */
+  private static long nextDataLine(FileChannel channel, long point, long limit) throws IOException {
+    channel.position(point - 1);
+    MarkerLineScanner scanner = new MarkerLineScanner(channel, point - 1);
+    scanner.nextLine();
+    while (scanner.getNextLineOffset() < limit && scanner.nextLine()) {
+      if (scanner.marker() == '*') {
+        return scanner.getLineOffset();
+      }
+    }
+    return -1L;
+  }
+
+  /**
+   * @return the offset of the first line that starts after {@code point}, or
+   *   at it when it follows a line terminator
+   */
+  private static long nextLineOffset(FileChannel channel, long point) throws IOException {
+    // Start one byte early, so a point right after a line terminator is kept
+    channel.position(point - 1);
+    MarkerLineScanner scanner = new MarkerLineScanner(channel, point - 1);
+    scanner.nextLine();
+    return scanner.getNextLineOffset();
+  }
+}
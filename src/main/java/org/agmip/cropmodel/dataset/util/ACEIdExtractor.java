@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the component IDs and linkage fields out of an ACEB file without
+ * building an AceDataset. Only the top level fields of each experiment, soil
+ * and weather are read; nested structures such as daily weather records,
+ * soil layers and management events are skipped, so memory use does not grow
+ * with the size of the file.
+ */
+public class ACEIdExtractor {
+
+  private static final int BUFFER_SIZE = 65536;
+
+  private ACEIdExtractor() {
+  }
+
+  /**
+   * Receives the IDs found in an ACEB file. Linkage fields missing from a
+   * component are passed as empty strings.
+   */
+  public interface IdVisitor {
+
+    void experiment(String id, String exname);
+
+    void soil(String id, String soilId);
+
+    void weather(String id, String wstId, String climId);
+  }
+
+  public static void extract(Path aceb, IdVisitor visitor) throws IOException {
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(aceb), BUFFER_SIZE);
+        JsonParser p = JsonFactoryProvider.getFactory().createParser(in)) {
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("ACEB file does not start with an object");
+      }
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String section = p.getCurrentName();
+        if (p.nextToken() != JsonToken.START_OBJECT) {
+          p.skipChildren();
+          continue;
+        }
+        switch (section) {
+          case "experiments":
+          case "soils":
+          case "weathers":
+            readComponents(p, section, visitor);
+            break;
+          default:
+            p.skipChildren();
+            break;
+        }
+      }
+    }
+  }
+
+  private static void readComponents(JsonParser p, String section, IdVisitor visitor) throws IOException {
+    String firstField;
+    String secondField = null;
+    switch (section) {
+      case "experiments":
+        firstField = "exname";
+        break;
+      case "soils":
+        firstField = "soil_id";
+        break;
+      default:
+        firstField = "wst_id";
+        secondField = "clim_id";
+        break;
+    }
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String id = p.getCurrentName();
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        p.skipChildren();
+        continue;
+      }
+      String first = "";
+      String second = "";
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.getCurrentName();
+        JsonToken value = p.nextToken();
+        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+          p.skipChildren();
+        } else if (value != JsonToken.VALUE_NULL) {
+          if (field.equals(firstField)) {
+            first = p.getText();
+          } else if (field.equals(secondField)) {
+            second = p.getText();
+          }
+        }
+      }
+      switch (section) {
+        case "experiments":
+          visitor.experiment(id, first);
+          break;
+        case "soils":
+          visitor.soil(id, first);
+          break;
+        default:
+          visitor.weather(id, first, second);
+          break;
+      }
+    }
+  }
+}
@@ -28,53 +28,115 @@
  */
 package org.agmip.cropmodel.dataset.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.agmip.ace.AceDataset;
-import org.agmip.ace.AceExperiment;
-import org.agmip.ace.AceSoil;
-import org.agmip.ace.AceWeather;
-import org.agmip.ace.io.AceGenerator;
-import org.agmip.ace.io.AceParser;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import org.agmip.cropmodel.dataset.filetype.ACEFile;
 
 /**
+ * Merges ACEB files into a single ACEB. Components are copied one at a time
+ * from each input into the output, so only the IDs already written and the
+ * component being copied are kept in memory. Each input is read once per
+ * section (experiments, soils, weathers); a component whose ID was already
+ * written is skipped. An input that cannot be read is logged, and the
+ * components copied from it before the failure are kept.
  *
  * @author frostbytten
  */
 public class ACESeamer {
   private static final Logger LOG = Logger.getLogger(ACESeamer.class.getName());
+  private static final String[] SECTIONS = {"experiments", "soils", "weathers"};
+  private static final int BUFFER_SIZE = 65536;
+
   private ACESeamer() {
   }
 
   public static void seam(List<ACEFile> files, Path output) {
-    try {
-      Path tmpFile = Files.createTempFile("agmipwb", ".aceb");
-      AceDataset ds = new AceDataset();
-      for (ACEFile file : files) {
-        LOG.log(Level.INFO, "Seaming file : {0}", file.getPath().toString());
-        AceDataset source = AceParser.parseACEB(file.getPath().toFile());
-        for (AceExperiment exp : source.getExperiments()) {
-          ds.addExperiment(exp.rebuildComponent());
-        }
-        for (AceSoil soil : source.getSoils()) {
-          ds.addSoil(soil.rebuildComponent());
+    try (OutputStream out = Files.newOutputStream(output)) {
+      seam(files, out);
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    }
+  }
+
+  /**
+   * Write the merged ACEB to a stream. The gzip stream is closed, which ends
+   * its deflater, but the stream it writes to is left open.
+   */
+  public static void seam(List<ACEFile> files, OutputStream output) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+    try (GZIPOutputStream out = new GZIPOutputStream(new NonClosingOutputStream(output), BUFFER_SIZE);
+        JsonGenerator g = JsonFactoryProvider.getFactory().createGenerator(out)) {
+      g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      g.writeStartObject();
+      for (String section : SECTIONS) {
+        Set<String> seen = new HashSet<>();
+        g.writeObjectFieldStart(section);
+        for (ACEFile file : files) {
+          LOG.log(Level.FINE, "Seaming {0} from {1}", new Object[]{section, file.getPath()});
+          try {
+            copySection(file.getPath(), section, g, seen, buffer);
+          } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "Unable to read ACEB file " + file.getPath(), ex);
+          }
         }
-        for (AceWeather wth : source.getWeathers()) {
-          ds.addWeather(wth.rebuildComponent());
+        g.writeEndObject();
+        LOG.log(Level.INFO, "Seamed {0} {1}", new Object[]{seen.size(), section});
+      }
+      g.writeEndObject();
+    }
+  }
+
+  /**
+   * Copy the components of one section of an ACEB. Each component is read
+   * into {@code buffer} before it is written, so a file that fails partway
+   * through only loses the components not yet copied.
+   */
+  private static void copySection(Path aceb, String section, JsonGenerator g, Set<String> seen,
+      ByteArrayOutputStream buffer) throws IOException {
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(aceb), BUFFER_SIZE);
+        JsonParser p = JsonFactoryProvider.getFactory().createParser(in)) {
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Invalid ACEB file: " + aceb);
+      }
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String name = p.getCurrentName();
+        JsonToken value = p.nextToken();
+        if (name.equals(section) && value == JsonToken.START_OBJECT) {
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String id = p.getCurrentName();
+            p.nextToken();
+            if (!seen.contains(id)) {
+              buffer.reset();
+              try (JsonGenerator copy = JsonFactoryProvider.getFactory().createGenerator(buffer)) {
+                copy.copyCurrentStructure(p);
+              }
+              seen.add(id);
+              g.writeFieldName(id);
+              g.writeRawValue(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+            } else {
+              p.skipChildren();
+            }
+          }
+          // Nothing else is needed from this file for this section.
+          return;
         }
+        p.skipChildren();
       }
-      LOG.log(Level.INFO, "Seaming completed. Attempting to write file to {0}.", tmpFile.toString());
-      AceGenerator.generateACEB(tmpFile.toFile(), ds);
-      LOG.log(Level.INFO, "Probably hanging here!");
-      Files.copy(tmpFile, output, StandardCopyOption.REPLACE_EXISTING);
-    } catch (Exception ex) {
-      LOG.log(Level.SEVERE, null, ex);
     }
   }
 }
@@ -30,13 +30,18 @@ package org.agmip.cropmodel.dataset.util;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Optional;
-import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -49,6 +54,11 @@ import org.agmip.cropmodel.dataset.filetype.SupplementalFile;
 import org.apache.tika.Tika;
 
 /**
+ * Identifies the type of a dataset file. Each file is opened once: a small
+ * prefix is read to decide between gzip and text from the magic bytes, and
+ * the rest of the file is only read if the content sniffing needs it. Text
+ * files are scanned as bytes, most are identified from the prefix alone. Tika is
+ * only consulted when the prefix is neither gzip nor text.
  *
  * @author Christopher Villalobos <cvillalobos@ufl.edu>
  */
@@ -57,34 +67,49 @@ public class AgMIPFileTypeIdentifier {
   private static final Logger LOG = Logger.getLogger(AgMIPFileTypeIdentifier.class.getName());
   private static final String[] VALID_EXTENSIONS = new String[]{".aceb", ".dome", ".alnk", ".csv"};
   private static final String[] VALID_ACMO_COLUMNS = new String[]{"EXNAME","FIELD_OVERLAY","SEASONAL_STRATEGY"};
+  private static final int PREFIX_SIZE = 8192;
+  // Tika detection is thread safe, so a single instance is shared.
+  private static final Tika TIKA = new Tika();
   private AgMIPFileTypeIdentifier() {}
 
   public static CropModelFile identify(Path file) {
+    return identify(file, null);
+  }
+
+  /**
+   * Identify a file.
+   *
+   * @param executor the executor to read a large ACMO file on, or
+   *   {@code null} to read it on this thread
+   */
+  public static CropModelFile identify(Path file, ExecutorService executor) {
     // Check the paths first
     String fileName = file.getFileName().toString();
     CropModelFile identity = null;
     if (endsWithFromArray(fileName, VALID_EXTENSIONS)) {
-      Tika tika = new Tika();
-      Optional<String> contentType;
-      try {
-        contentType = Optional.of(tika.detect(file));
-      } catch (IOException ex) {
-        LOG.log(Level.INFO, null, ex);
-        contentType = Optional.empty();
-      }
-      if (contentType.isPresent()) {
-        switch (contentType.get().toLowerCase(Locale.ROOT)) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+        while (prefix.hasRemaining() && channel.read(prefix) != -1) {
+          // Fill the prefix buffer
+        }
+        byte[] buf = prefix.array();
+        int len = prefix.position();
+        // The remainder of the file picks up where the prefix left off.
+        switch (detectContentType(buf, len, fileName)) {
           case "application/gzip":
-            identity = identifyGZIPFile(file);
+            identity = identifyGZIPFile(file, new SequenceInputStream(
+                new ByteArrayInputStream(buf, 0, len), Channels.newInputStream(channel)));
             break;
           case "text/plain":
           case "text/csv":
-            identity = identifyTextFile(file);
+            identity = identifyTextFile(file, new MarkerLineScanner(buf, len, channel), executor);
             break;
           default:
             identity = new SupplementalFile(file);
             break;
         }
+      } catch (IOException ex) {
+        LOG.log(Level.INFO, null, ex);
       }
     } else {
       identity = new SupplementalFile(file);
@@ -92,40 +117,56 @@ public class AgMIPFileTypeIdentifier {
     return identity;
   }
 
-  private static CropModelFile identifyGZIPFile(Path file) {
+  private static String detectContentType(byte[] buf, int len, String fileName) {
+    if (len >= 2 && (buf[0] & 0xff) == 0x1f && (buf[1] & 0xff) == 0x8b) {
+      return "application/gzip";
+    }
+    if (isText(buf, len)) {
+      return "text/plain";
+    }
+    return TIKA.detect(Arrays.copyOf(buf, len), fileName).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Text files have no NUL bytes and no control characters other than
+   * whitespace.
+   */
+  private static boolean isText(byte[] buf, int len) {
+    for (int i = 0; i < len; i++) {
+      int b = buf[i] & 0xff;
+      if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static CropModelFile identifyGZIPFile(Path file, InputStream content) {
     CropModelFile identity = null;
-    InputStream data = null;
-    JsonParser p = null;
-    try {
-      data = new GZIPInputStream(new FileInputStream(file.toFile()));
-      p = JsonFactoryProvider.getFactory().createParser(data);
+    try (InputStream data = new GZIPInputStream(content);
+        JsonParser p = JsonFactoryProvider.getFactory().createParser(data)) {
       JsonToken first = p.nextToken();
       p.nextToken();
       if (first.equals(JsonToken.START_OBJECT)) {
-        if (p != null) {
-          switch (p.getCurrentName()) {
-            case "experiments":
-            case "weathers":
-            case "soils":
-              identity = new ACEFile(file);
-              break;
-            default:
-              p.nextToken();
-              p.nextToken();
-              switch (p.getCurrentName()) {
-                case "generators":
-                case "rules":
-                case "info":
-                  identity = new DOMEFile(file);
-                  break;
-                default:
-                  identity = new SupplementalFile(file);
-                  break;
-              }
-          }
-        } else {
-          LOG.log(Level.SEVERE, "NPE Issue with file: {0}", file.toString());
-          identity = new SupplementalFile(file);
+        switch (p.getCurrentName()) {
+          case "experiments":
+          case "weathers":
+          case "soils":
+            identity = new ACEFile(file);
+            break;
+          default:
+            p.nextToken();
+            p.nextToken();
+            switch (p.getCurrentName()) {
+              case "generators":
+              case "rules":
+              case "info":
+                identity = new DOMEFile(file);
+                break;
+              default:
+                identity = new SupplementalFile(file);
+                break;
+            }
         }
       } else {
         identity = new SupplementalFile(file);
@@ -133,66 +174,57 @@ public class AgMIPFileTypeIdentifier {
     } catch (Exception ex) {
       LOG.log(Level.SEVERE, null, ex);
       identity = new SupplementalFile(file);
-    } finally {
-      try {
-        if (p != null) {
-          p.close();
-        }
-        if (data != null) {
-          data.close();
-        }
-      } catch (IOException ex) {
-        LOG.log(Level.SEVERE, null, ex);
-      }
     }
     return identity;
   }
 
-  private static CropModelFile identifyTextFile(Path file) {
+  /**
+   * Identify a text file from its first line that is not a {@code !} or
+   * {@code *} line. Only the marker and the header line are looked at, and
+   * as bytes, so no line is decoded.
+   */
+  private static CropModelFile identifyTextFile(Path file, MarkerLineScanner scanner,
+      ExecutorService executor) {
     CropModelFile identity = null;
     try {
-      try (Scanner scanner = new Scanner(file)) {
-        boolean identified = false;
-        while (!identified) {
-          if (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            if (line.length() > 2) {
-              char identifier = (line.startsWith("\"")) ? line.charAt(1) : line.charAt(0);
-              switch (identifier) {
-                case '!':
-                case '*':
-                  // Don't know anything at this point.
-                  break;
-                case '#':
-                  // This is a header which will help us identify the filetype
-                  // This is hacky because a lot of our files contain EXNAME
-                  if (containsAllFromArray(line, VALID_ACMO_COLUMNS)) {
-                    if (line.contains("CROP_MODEL")) {
-                      identity = new ACMOFile(file);
+      boolean identified = false;
+      while (!identified) {
+        if (scanner.nextLine()) {
+          if (scanner.length() > 2) {
+            switch (scanner.marker()) {
+              case '!':
+              case '*':
+                // Don't know anything at this point.
+                break;
+              case '#':
+                // This is a header which will help us identify the filetype
+                // This is hacky because a lot of our files contain EXNAME
+                if (containsAllFromArray(scanner, VALID_ACMO_COLUMNS)) {
+                  if (scanner.contains("CROP_MODEL")) {
+                    identity = new ACMOFile(file, executor);
+                    identified = true;
+                  } else {
+                    if (scanner.length() < 5) {
+                      identity = new LinkageFile(file);
                       identified = true;
                     } else {
-                      if (line.length() < 5) {
-                        identity = new LinkageFile(file);
-                        identified = true;
-                      } else {
-                        identity = new SupplementalFile(file);
-                        identified = true;
-                      }
+                      identity = new SupplementalFile(file);
+                      identified = true;
                     }
-                  } else {
-                    identity = new SupplementalFile(file);
-                    identified = true;
                   }
-                  break;
-                default:
+                } else {
                   identity = new SupplementalFile(file);
                   identified = true;
-              }
+                }
+                break;
+              default:
+                identity = new SupplementalFile(file);
+                identified = true;
             }
-          } else {
-            identity = new SupplementalFile(file);
-            identified = true;
           }
+        } else {
+          identity = new SupplementalFile(file);
+          identified = true;
         }
       }
     } catch (IOException ex) {
@@ -205,6 +237,15 @@ public class AgMIPFileTypeIdentifier {
     return identity;
   }
 
+  private static boolean containsAllFromArray(MarkerLineScanner scanner, String[] needles) {
+    for (String needle : needles) {
+      if (!scanner.contains(needle)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public static boolean endsWithFromArray(String source, String[] needles) {
     String haystack = source.toLowerCase();
     for (String needle : needles) {
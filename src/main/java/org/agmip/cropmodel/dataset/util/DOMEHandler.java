@@ -28,150 +28,200 @@
  */
 package org.agmip.cropmodel.dataset.util;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 /**
  * This class should eventually be replaced by DOME 2.0 library functions.
  * @author Christopher Villalobos <cvillalobos@ufl.edu>
  */
 public class DOMEHandler {
+  private static final Logger LOG = Logger.getLogger(DOMEHandler.class.getName());
+  private static final int BUFFER_SIZE = 65536;
+  private static final String[] NAME_FIELDS = {"reg_id", "stratum", "rap_id", "man_id", "rap_ver", "clim_id", "description"};
+
   private DOMEHandler(){}
-  public static Set<String> getDomeIds(Path path) {
-    Set<String> results = new HashSet<>();
-    try(FileInputStream fis = new FileInputStream(path.toFile());
-        GZIPInputStream gis = new GZIPInputStream(fis);
-        JsonParser p = JsonFactoryProvider.getFactory().createParser(gis)){
-      // Do something
-      boolean level = false;
-      String currentDome;
-      while(Optional.ofNullable(p.nextToken()).isPresent()) {
-        switch(p.getCurrentToken()) {
-          case START_OBJECT:
-            if (level) {
-              p.skipChildren();
-              level = false;
-            } else {
-              p.nextToken();
-              results.add(p.getCurrentName());
-              level = true;
-            }
-            break;
-          case FIELD_NAME:
-            if (! level) {
-              results.add(p.getCurrentName());
-              level = true;
-            }
-            break;
-          case END_OBJECT:
-            level = false;
-            break;
-          default:
-            //Do nothing
-            break;
+
+  /**
+   * A single DOME from a DOME file: its ID, the name composed from its info
+   * block and a digest of its content.
+   */
+  public static class DomeEntry {
+    private final String id;
+    private final Optional<String> name;
+    private final byte[] digest;
+
+    DomeEntry(String id, Optional<String> name, byte[] digest) {
+      this.id = id;
+      this.name = name;
+      this.digest = digest;
+    }
+
+    public String getId() {
+      return this.id;
+    }
+
+    /**
+     * The name composed from the info block, in the form
+     * REG_ID-STRATUM-RAP_ID-MAN_ID-RAP_VER-CLIM_ID-DESCRIPTION. Empty if the
+     * DOME has no info block.
+     */
+    public Optional<String> getName() {
+      return this.name;
+    }
+
+    public byte[] getDigest() {
+      return this.digest;
+    }
+  }
+
+  /**
+   * Read every DOME in a DOME file in a single pass.
+   */
+  public static List<DomeEntry> indexDomes(Path path) throws IOException {
+    List<DomeEntry> results = new ArrayList<>();
+    MessageDigest md = newDigest();
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        JsonParser p = JsonFactoryProvider.getFactory().createParser(in)) {
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        return results;
+      }
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String domeId = p.getCurrentName();
+        if (p.nextToken() == JsonToken.START_OBJECT) {
+          results.add(readDome(domeId, p, md, null));
+        } else {
+          p.skipChildren();
         }
       }
+    }
+    return results;
+  }
+
+  public static Set<String> getDomeIds(Path path) {
+    Set<String> results = new HashSet<>();
+    try {
+      indexDomes(path).forEach((dome) -> results.add(dome.getId()));
     } catch (IOException ex) {
-      //Log the error
+      LOG.log(Level.WARNING, "Unable to read DOME file " + path, ex);
     }
     return results;
   }
 
   public static Set<String> getDomeNames(Path path) {
     Set<String> results = new HashSet<>();
-    try(FileInputStream fis = new FileInputStream(path.toFile());
-        GZIPInputStream gis = new GZIPInputStream(fis);
-        JsonParser p = JsonFactoryProvider.getFactory().createParser(gis)){
-      boolean inInfo = false;
-      String regId = "";
-      String stratum = "";
-      String rapId = "";
-      String manId = "";
-      String rapVer = "";
-      String climId = "";
-      String desc = "";
-      while(Optional.ofNullable(p.nextToken()).isPresent()) {
-        switch(p.getCurrentToken()) {
-          case FIELD_NAME:
-            String field = p.getCurrentName();
-            if (field.toLowerCase().equals("info")) {
-              inInfo = true;
-            }
-            break;
-          case VALUE_STRING:
-            if (inInfo) {
-              String currentValue = p.getText();
-              if (currentValue == null) {
-                // This should never happen, but guard because never happens.
-                continue;
-              }
-              currentValue = currentValue.toUpperCase();
-              switch(p.getCurrentName().toLowerCase()) {
-                case "reg_id":
-                  regId = currentValue;
-                  break;
-                case "stratum":
-                  stratum = currentValue;
-                  break;
-                case "rap_id":
-                  rapId = currentValue;
-                  break;
-                case "man_id":
-                  manId = currentValue;
-                  break;
-                case "rap_ver":
-                  rapVer = currentValue;
-                  break;
-                case "clim_id":
-                  climId = currentValue;
-                  break;
-                case "description":
-                  desc = currentValue;
-                  break;
-                default:
-                  break;
+    try {
+      indexDomes(path).forEach((dome) -> dome.getName().ifPresent(results::add));
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "Unable to read DOME file " + path, ex);
+    }
+    return results;
+  }
+
+  /**
+   * Read the DOME the parser is on, which must be at its START_OBJECT. The
+   * digest covers every token of the DOME, so two DOMEs have the same digest
+   * only if they have the same content. When {@code copy} is not null the DOME
+   * is also copied to it.
+   */
+  static DomeEntry readDome(String domeId, JsonParser p, MessageDigest md, JsonGenerator copy) throws IOException {
+    String[] info = null;
+    int infoDepth = -1;
+    int depth = 0;
+    boolean nextIsInfo = false;
+    md.reset();
+    JsonToken t = p.getCurrentToken();
+    while (true) {
+      if (copy != null) {
+        copy.copyCurrentEvent(p);
+      }
+      md.update((byte) t.ordinal());
+      switch (t) {
+        case START_OBJECT:
+          depth++;
+          if (nextIsInfo && info == null) {
+            info = new String[NAME_FIELDS.length];
+            infoDepth = depth;
+          }
+          nextIsInfo = false;
+          break;
+        case START_ARRAY:
+          depth++;
+          nextIsInfo = false;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          depth--;
+          break;
+        case FIELD_NAME:
+          String field = p.getCurrentName();
+          md.update(field.getBytes(StandardCharsets.UTF_8));
+          nextIsInfo = field.equalsIgnoreCase("info");
+          break;
+        default:
+          String value = p.getText();
+          md.update(value.getBytes(StandardCharsets.UTF_8));
+          if (t == JsonToken.VALUE_STRING && info != null && depth == infoDepth) {
+            String infoField = p.getCurrentName();
+            for (int i = 0; i < NAME_FIELDS.length; i++) {
+              if (NAME_FIELDS[i].equalsIgnoreCase(infoField)) {
+                info[i] = value.toUpperCase();
+                break;
               }
             }
-            break;
-          case END_OBJECT:
-            if (inInfo) {
-              StringBuilder sb = new StringBuilder();
-              sb.append(regId);
-              sb.append("-");
-              sb.append(stratum);
-              sb.append("-");
-              sb.append(rapId);
-              sb.append("-");
-              sb.append(manId);
-              sb.append("-");
-              sb.append(rapVer);
-              sb.append("-");
-              sb.append(climId);
-              sb.append("-");
-              sb.append(desc);
-              results.add(sb.toString());
-              regId = "";
-              stratum = "";
-              rapId = "";
-              manId = "";
-              rapVer = "";
-              climId = "";
-              desc = "";
-              inInfo = false;
-            }
-            break;
+          }
+          nextIsInfo = false;
+          break;
+      }
+      if (depth == 0) {
+        break;
+      }
+      if (info != null && depth < infoDepth) {
+        // Left the info block
+        infoDepth = Integer.MAX_VALUE;
+      }
+      t = p.nextToken();
+      if (t == null) {
+        throw new IOException("Unexpected end of DOME " + domeId);
+      }
+    }
+    Optional<String> name = Optional.empty();
+    if (info != null) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < NAME_FIELDS.length; i++) {
+        if (i > 0) {
+          sb.append("-");
         }
+        sb.append(info[i] == null ? "" : info[i]);
       }
-    } catch (IOException ex) {
-      // Log the rror
+      name = Optional.of(sb.toString());
+    }
+    return new DomeEntry(domeId, name, md.digest());
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-1.
+      throw new IllegalStateException(ex);
     }
-    return results;
   }
 }
@@ -31,15 +31,18 @@ package org.agmip.cropmodel.dataset.util;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -47,61 +50,94 @@ import java.util.zip.GZIPOutputStream;
 import org.agmip.cropmodel.dataset.filetype.DOMEFile;
 
 /**
+ * Merges DOME files into a single DOME file. The first DOME seen for each ID
+ * is written; later DOMEs with the same ID are skipped and reported along
+ * with the file they came from and whether their content differs. A file
+ * that cannot be read is logged and the DOMEs read from it before the
+ * failure are kept.
  *
  * @author frostbytten
  */
 public class DOMESeamer {
   private final static Logger LOG = Logger.getLogger(DOMESeamer.class.getName());
+  private static final int BUFFER_SIZE = 65536;
 
   private DOMESeamer() {}
 
+  private static class SavedDome {
+    final Path source;
+    final byte[] digest;
+
+    SavedDome(Path source, byte[] digest) {
+      this.source = source;
+      this.digest = digest;
+    }
+  }
+
   public static void seam(List<DOMEFile> files, Path output) {
-    List<String> savedDomeList = new ArrayList<>();
-    try {
-      long count = 0L;
-      Path tmpFile = Files.createTempFile("agmipwb", ".dome");
-      try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile.toFile()));
-          JsonGenerator g = JsonFactoryProvider.getFactory().createGenerator(out)) {
-        g.writeStartObject();
-        for (DOMEFile file : files) {
-          LOG.log(Level.INFO, "Examinging file: {0}", file.getPath().toString());
-          try (GZIPInputStream in = new GZIPInputStream(new FileInputStream(file.getPath().toFile()));
-              JsonParser p = JsonFactoryProvider.getFactory().createParser(in)) {
-            boolean started = false;
-            while (Optional.ofNullable(p.nextToken()).isPresent()) {
-              String currentDome = p.getCurrentName();
-              JsonToken t = p.getCurrentToken();
-              if (t == JsonToken.START_OBJECT) {
-                if (! started ) {
-                  p.nextToken();
-                  started = true;
-                }
-                if (currentDome != null) {
-                  LOG.log(Level.INFO, "Current domeId: {0}", currentDome);
-                  if (savedDomeList.contains(currentDome)) {
-                    p.skipChildren();
-                  } else {
-                    g.writeFieldName(currentDome);
-                    LOG.log(Level.INFO, "Copy token target: {0}", p.getCurrentToken());
-                    g.copyCurrentStructure(p);
-                    count++;
-                    savedDomeList.add(currentDome);
-                  }
-                }
+    try (OutputStream out = Files.newOutputStream(output)) {
+      seam(files, out);
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    }
+  }
+
+  /**
+   * Write the merged DOME file to a stream. The gzip stream is closed, which
+   * ends its deflater, but the stream it writes to is left open.
+   */
+  public static void seam(List<DOMEFile> files, OutputStream output) throws IOException {
+    Map<String, SavedDome> savedDomes = new HashMap<>();
+    MessageDigest md = DOMEHandler.newDigest();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+    try (GZIPOutputStream out = new GZIPOutputStream(new NonClosingOutputStream(output), BUFFER_SIZE);
+        JsonGenerator g = JsonFactoryProvider.getFactory().createGenerator(out)) {
+      g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      g.writeStartObject();
+      for (DOMEFile file : files) {
+        LOG.log(Level.FINE, "Examining file: {0}", file.getPath());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.getPath()), BUFFER_SIZE);
+            JsonParser p = JsonFactoryProvider.getFactory().createParser(in)) {
+          if (p.nextToken() != JsonToken.START_OBJECT) {
+            LOG.log(Level.WARNING, "Skipping invalid DOME file: {0}", file.getPath());
+            continue;
+          }
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String domeId = p.getCurrentName();
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+              p.skipChildren();
+              continue;
+            }
+            SavedDome saved = savedDomes.get(domeId);
+            if (saved == null) {
+              // Copy the DOME to a buffer first, a file that fails partway
+              // through a DOME must not leave half of it in the output.
+              buffer.reset();
+              byte[] digest;
+              try (JsonGenerator copy = JsonFactoryProvider.getFactory().createGenerator(buffer)) {
+                digest = DOMEHandler.readDome(domeId, p, md, copy).getDigest();
               }
+              g.writeFieldName(domeId);
+              g.writeRawValue(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+              savedDomes.put(domeId, new SavedDome(file.getPath(), digest));
+              continue;
+            }
+            byte[] digest = DOMEHandler.readDome(domeId, p, md, null).getDigest();
+            if (Arrays.equals(saved.digest, digest)) {
+              LOG.log(Level.FINE, "Skipping duplicate DOME {0} in {1}, same as in {2}",
+                  new Object[]{domeId, file.getPath(), saved.source});
+            } else {
+              LOG.log(Level.WARNING, "Skipping duplicate DOME {0} in {1}, its content differs from the one in {2}",
+                  new Object[]{domeId, file.getPath(), saved.source});
             }
-          } catch (Exception ex) {
-            LOG.log(Level.SEVERE, null, ex);
           }
+        } catch (IOException ex) {
+          LOG.log(Level.SEVERE, "Unable to read DOME file " + file.getPath(), ex);
         }
-        g.writeEndObject();
-      } catch (IOException ex) {
-        Logger.getLogger(DOMESeamer.class.getName()).log(Level.SEVERE, null, ex);
       }
-      LOG.log(Level.INFO, "Copied domes: {0}", count);
-      Files.copy(tmpFile, output, StandardCopyOption.REPLACE_EXISTING);
-    } catch (IOException ex) {
-      Logger.getLogger(DOMESeamer.class.getName()).log(Level.SEVERE, null, ex);
+      g.writeEndObject();
     }
+    LOG.log(Level.INFO, "Copied domes: {0}", savedDomes.size());
   }
+
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+/**
+ * Checks ACMO dates without parsing them into objects. A date is valid when
+ * {@code Constants.DATE_FORMAT} would parse it: a year of up to nine digits
+ * with an optional sign, a month and a day of one or two digits each,
+ * separated by dashes, that name a day of the ISO calendar. The only
+ * difference is at the edges of the years Joda-Time supports: it rejects
+ * October 31 of the first and last year and accepts November 31 of the last
+ * one, while those years are checked here like any other.
+ *
+ * <p>The check returns a status instead of throwing, and does not allocate,
+ * so files with a bad date on every line cost no more than clean ones.
+ */
+public final class DateValidator {
+  public static final int VALID = 0;
+  /** Not a yyyy-MM-dd date at all. */
+  public static final int MALFORMED = 1;
+  /** A yyyy-MM-dd date with a month or day that does not exist. */
+  public static final int NO_SUCH_DAY = 2;
+  /**
+   * The day before the start of the APSIM and Excel day count, written
+   * month first ({@code 12-30-0}). APSIM writes it for dates it never set.
+   */
+  public static final int APSIM_ZERO_DATE = 3;
+
+  // The years DATE_FORMAT parses, one wider than the ISO chronology each way
+  private static final long MIN_YEAR = -292275055L;
+  private static final long MAX_YEAR = 292278994L;
+  private static final String APSIM_ZERO_PREFIX = "12-30-";
+  private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+  private DateValidator() {}
+
+  public static boolean isValid(CharSequence value) {
+    return check(value) == VALID;
+  }
+
+  /**
+   * @param value the date to check
+   * @return {@link #VALID}, {@link #MALFORMED}, {@link #NO_SUCH_DAY} or
+   *   {@link #APSIM_ZERO_DATE}
+   */
+  public static int check(CharSequence value) {
+    int len = value.length();
+    if (isApsimZeroDate(value, len)) {
+      return APSIM_ZERO_DATE;
+    }
+    int i = 0;
+    boolean negative = false;
+    if (len > 1 && (value.charAt(0) == '-' || value.charAt(0) == '+') && isDigit(value.charAt(1))) {
+      negative = value.charAt(0) == '-';
+      i++;
+    }
+    long year = 0L;
+    int start = i;
+    while (i < len && i - start < 9 && isDigit(value.charAt(i))) {
+      year = year * 10 + (value.charAt(i++) - '0');
+    }
+    if (i == start || i >= len || value.charAt(i++) != '-') {
+      return MALFORMED;
+    }
+    int month = 0;
+    start = i;
+    while (i < len && i - start < 2 && isDigit(value.charAt(i))) {
+      month = month * 10 + (value.charAt(i++) - '0');
+    }
+    if (i == start || i >= len || value.charAt(i++) != '-') {
+      return MALFORMED;
+    }
+    int day = 0;
+    start = i;
+    while (i < len && i - start < 2 && isDigit(value.charAt(i))) {
+      day = day * 10 + (value.charAt(i++) - '0');
+    }
+    if (i == start || i != len) {
+      return MALFORMED;
+    }
+    if (negative) {
+      year = -year;
+    }
+    if (year < MIN_YEAR || year > MAX_YEAR || month < 1 || month > 12 || day < 1) {
+      return NO_SUCH_DAY;
+    }
+    int days = (month == 2 && isLeapYear(year)) ? 29 : DAYS_IN_MONTH[month - 1];
+    return (day <= days) ? VALID : NO_SUCH_DAY;
+  }
+
+  /**
+   * Match {@code 12-30-0}, also with the year written as {@code 00} or
+   * {@code 1899}.
+   */
+  private static boolean isApsimZeroDate(CharSequence value, int len) {
+    int prefix = APSIM_ZERO_PREFIX.length();
+    if (len <= prefix || len > prefix + 4) {
+      return false;
+    }
+    for (int i = 0; i < prefix; i++) {
+      if (value.charAt(i) != APSIM_ZERO_PREFIX.charAt(i)) {
+        return false;
+      }
+    }
+    int year = 0;
+    for (int i = prefix; i < len; i++) {
+      char c = value.charAt(i);
+      if (!isDigit(c)) {
+        return false;
+      }
+      year = year * 10 + (c - '0');
+    }
+    return year == 0 || (year == 1899 && len == prefix + 4);
+  }
+
+  private static boolean isLeapYear(long year) {
+    return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Keeps the first few diagnostics of a check, and counts every diagnostic by
+ * category. A badly broken file can have a problem on every line, and only
+ * the first ones are needed to fix it.
+ *
+ * @param <T> the diagnostics kept
+ */
+public final class DiagnosticLog<T> {
+  /** A limit that keeps every diagnostic. */
+  public static final int UNLIMITED = Integer.MAX_VALUE;
+
+  private final int limit;
+  private final List<T> kept = new ArrayList<>();
+  private final Map<String, Long> counts = new LinkedHashMap<>();
+  private long total = 0L;
+  private boolean truncated = false;
+
+  /**
+   * @param limit the number of diagnostics to keep
+   */
+  public DiagnosticLog(int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Negative diagnostic limit: " + limit);
+    }
+    this.limit = limit;
+  }
+
+  /**
+   * Count a diagnostic and keep it if there is still room.
+   *
+   * @return {@code true} if the diagnostic was kept
+   */
+  public boolean add(String category, T diagnostic) {
+    count(category, 1L);
+    if (kept.size() < limit) {
+      kept.add(diagnostic);
+      return true;
+    }
+    truncated = true;
+    return false;
+  }
+
+  /**
+   * Count a diagnostic without keeping it, such as one that repeats a kept
+   * diagnostic.
+   */
+  public void count(String category) {
+    count(category, 1L);
+  }
+
+  /**
+   * Count a diagnostic that a full log would leave out, without having to
+   * make it.
+   *
+   * @see #isFull()
+   */
+  public void skip(String category) {
+    count(category, 1L);
+    truncated = true;
+  }
+
+  private void count(String category, long n) {
+    counts.merge(category, n, Long::sum);
+    total += n;
+  }
+
+  /**
+   * Add the diagnostics of another log after the ones of this log, as when
+   * merging the logs of consecutive parts of a file.
+   *
+   * @param map converts a diagnostic of the other log, or returns
+   *   {@code null} for a diagnostic that is only counted
+   */
+  public <S> void addAll(DiagnosticLog<S> other, Function<? super S, ? extends T> map) {
+    other.counts.forEach(this::count);
+    truncated |= other.truncated;
+    for (S diagnostic : other.kept) {
+      T mapped = map.apply(diagnostic);
+      if (mapped == null) {
+        continue;
+      }
+      if (kept.size() < limit) {
+        kept.add(mapped);
+      } else {
+        truncated = true;
+        break;
+      }
+    }
+  }
+
+  public boolean isFull() {
+    return kept.size() >= limit;
+  }
+
+  /**
+   * @return {@code true} if a diagnostic was left out for lack of room
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public boolean isEmpty() {
+    return total == 0L;
+  }
+
+  public List<T> getDiagnostics() {
+    return Collections.unmodifiableList(kept);
+  }
+
+  public Map<String, Long> getCounts() {
+    return Collections.unmodifiableMap(counts);
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Describe the counts, for the end of a truncated report.
+   *
+   * @return for example "250 problems found (Invalid date: 250), only the
+   *   first 100 are listed."
+   */
+  public String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(total).append(total == 1L ? " problem found (" : " problems found (");
+    String separator = "";
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      sb.append(separator).append(count.getKey()).append(": ").append(count.getValue());
+      separator = ", ";
+    }
+    if (kept.isEmpty()) {
+      sb.append("), none are listed.");
+    } else {
+      sb.append("), only the first ").append(kept.size()).append(kept.size() == 1 ? " is listed." : " are listed.");
+    }
+    return sb.toString();
+  }
+}
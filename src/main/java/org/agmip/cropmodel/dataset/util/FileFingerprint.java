@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The size and last modified time of a file, used to tell whether a file has
+ * changed since it was last read.
+ */
+public final class FileFingerprint {
+  private final long size;
+  private final long lastModified;
+
+  public FileFingerprint(long size, long lastModified) {
+    this.size = size;
+    this.lastModified = lastModified;
+  }
+
+  public static FileFingerprint of(Path path) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    return new FileFingerprint(attrs.size(), attrs.lastModifiedTime().toMillis());
+  }
+
+  public long getSize() {
+    return this.size;
+  }
+
+  public long getLastModified() {
+    return this.lastModified;
+  }
+
+  /**
+   * Check the file on disk against this fingerprint.
+   *
+   * @param path the file to check
+   * @return {@code true} if the file is missing or has a different size or
+   *   last modified time
+   */
+  public boolean isStale(Path path) {
+    try {
+      return !this.equals(FileFingerprint.of(path));
+    } catch (IOException ex) {
+      return true;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(this.size) * 31 + Long.hashCode(this.lastModified);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null) {
+      return false;
+    }
+    if (getClass() != obj.getClass()) {
+      return false;
+    }
+    final FileFingerprint other = (FileFingerprint) obj;
+    return this.size == other.size && this.lastModified == other.lastModified;
+  }
+
+  @Override
+  public String toString() {
+    return this.size + ":" + this.lastModified;
+  }
+}
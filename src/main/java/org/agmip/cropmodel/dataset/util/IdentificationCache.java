@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.agmip.cropmodel.dataset.filetype.ACEFile;
+import org.agmip.cropmodel.dataset.filetype.ACMOFile;
+import org.agmip.cropmodel.dataset.filetype.CropModelFile;
+import org.agmip.cropmodel.dataset.filetype.CropModelFile.CropModelFileType;
+import org.agmip.cropmodel.dataset.filetype.DOMEFile;
+import org.agmip.cropmodel.dataset.filetype.LinkageFile;
+import org.agmip.cropmodel.dataset.filetype.ModelSpecificFile;
+import org.agmip.cropmodel.dataset.filetype.SupplementalFile;
+
+/**
+ * Remembers the identified type of every file in a dataset directory, along
+ * with the metadata extracted from ACMO files, so that files which have not
+ * changed since the last identification are not read again. The cache is
+ * stored as a dot file in the dataset directory, which the dataset walk
+ * skips.
+ *
+ * It is safe to call {@link #identify(Path)} from several threads at once.
+ */
+public class IdentificationCache {
+
+  public static final String CACHE_FILE = ".agmip-identify.json";
+  private static final Logger LOG = Logger.getLogger(IdentificationCache.class.getName());
+  private static final int VERSION = 1;
+  private final Path basedir;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private static class Entry {
+    final FileFingerprint fingerprint;
+    final CropModelFile file;
+
+    Entry(FileFingerprint fingerprint, CropModelFile file) {
+      this.fingerprint = fingerprint;
+      this.file = file;
+    }
+  }
+
+  public IdentificationCache(Path basedir) {
+    this.basedir = basedir;
+  }
+
+  /**
+   * Load the cache stored in a dataset directory. An empty cache is returned
+   * if there is no cache file or it cannot be read.
+   */
+  public static IdentificationCache load(Path basedir) {
+    IdentificationCache cache = new IdentificationCache(basedir);
+    Path cacheFile = basedir.resolve(CACHE_FILE);
+    if (Files.isRegularFile(cacheFile)) {
+      try (JsonParser p = JsonFactoryProvider.getFactory().createParser(cacheFile.toFile())) {
+        cache.read(p);
+      } catch (IOException | RuntimeException ex) {
+        LOG.log(Level.WARNING, "Ignoring unreadable identification cache {0}: {1}", new Object[]{cacheFile, ex});
+        cache.entries.clear();
+      }
+    }
+    return cache;
+  }
+
+  public Path getBasedir() {
+    return this.basedir;
+  }
+
+  /**
+   * Identify a file, reusing the cached result if the file has the same size
+   * and last modified time as when it was cached.
+   */
+  public CropModelFile identify(Path file) {
+    return identify(file, null);
+  }
+
+  /**
+   * Identify a file, reusing the cached result if the file has the same size
+   * and last modified time as when it was cached.
+   *
+   * @param executor the executor to read large ACMO files on, or
+   *   {@code null} to read them on this thread
+   */
+  public CropModelFile identify(Path file, ExecutorService executor) {
+    FileFingerprint fingerprint;
+    try {
+      fingerprint = FileFingerprint.of(file);
+    } catch (IOException ex) {
+      return AgMIPFileTypeIdentifier.identify(file, executor);
+    }
+    String key = key(file);
+    Entry entry = entries.get(key);
+    if (entry != null && entry.fingerprint.equals(fingerprint)) {
+      return entry.file;
+    }
+    CropModelFile f = AgMIPFileTypeIdentifier.identify(file, executor);
+    if (f != null) {
+      entries.put(key, new Entry(fingerprint, f));
+    } else {
+      entries.remove(key);
+    }
+    return f;
+  }
+
+  /**
+   * Drop the entries for every file not in the given collection.
+   */
+  public void retainAll(Collection<Path> files) {
+    Set<String> keep = new HashSet<>();
+    files.forEach((file) -> keep.add(key(file)));
+    entries.keySet().retainAll(keep);
+  }
+
+  /**
+   * Write the cache to the dataset directory.
+   */
+  public void save() {
+    Path cacheFile = basedir.resolve(CACHE_FILE);
+    Path tmpFile = null;
+    try {
+      tmpFile = Files.createTempFile(basedir, CACHE_FILE, ".tmp");
+      try (JsonGenerator g = JsonFactoryProvider.getFactory().createGenerator(tmpFile.toFile(), JsonEncoding.UTF8)) {
+        write(g);
+      }
+      Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "Unable to write identification cache {0}: {1}", new Object[]{cacheFile, ex});
+    } finally {
+      if (tmpFile != null) {
+        try {
+          Files.deleteIfExists(tmpFile);
+        } catch (IOException ex) {
+          LOG.log(Level.FINE, null, ex);
+        }
+      }
+    }
+  }
+
+  private String key(Path file) {
+    return basedir.relativize(file).toString();
+  }
+
+  private void write(JsonGenerator g) throws IOException {
+    g.writeStartObject();
+    g.writeNumberField("version", VERSION);
+    g.writeObjectFieldStart("files");
+    for (Map.Entry<String, Entry> e : new TreeMap<>(entries).entrySet()) {
+      Entry entry = e.getValue();
+      g.writeObjectFieldStart(e.getKey());
+      g.writeStringField("type", entry.file.getFileType().name());
+      g.writeNumberField("size", entry.fingerprint.getSize());
+      g.writeNumberField("mtime", entry.fingerprint.getLastModified());
+      if (entry.file instanceof ACMOFile) {
+        ACMOFile acmo = (ACMOFile) entry.file;
+        if (acmo.getHeader().isPresent()) {
+          writeStrings(g, "header", acmo.getHeader().get());
+        }
+        if (acmo.getCMSeries().isPresent()) {
+          g.writeStringField("cm_series", acmo.getCMSeries().get());
+        }
+        g.writeObjectFieldStart("metadata");
+        for (Map.Entry<String, String> m : acmo.getMetadata().entrySet()) {
+          g.writeStringField(m.getKey(), m.getValue());
+        }
+        g.writeEndObject();
+        writeStrings(g, "crops", acmo.getCrops().toArray(new String[0]));
+        writeStrings(g, "wst_ids", acmo.getWeatherIds().toArray(new String[0]));
+      }
+      g.writeEndObject();
+    }
+    g.writeEndObject();
+    g.writeEndObject();
+  }
+
+  private static void writeStrings(JsonGenerator g, String field, String[] values) throws IOException {
+    g.writeArrayFieldStart(field);
+    for (String value : values) {
+      g.writeString(value);
+    }
+    g.writeEndArray();
+  }
+
+  private void read(JsonParser p) throws IOException {
+    if (p.nextToken() != JsonToken.START_OBJECT) {
+      return;
+    }
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String field = p.getCurrentName();
+      p.nextToken();
+      switch (field) {
+        case "version":
+          if (p.getIntValue() != VERSION) {
+            return;
+          }
+          break;
+        case "files":
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String key = p.getCurrentName();
+            p.nextToken();
+            readEntry(p, key);
+          }
+          break;
+        default:
+          p.skipChildren();
+          break;
+      }
+    }
+  }
+
+  private void readEntry(JsonParser p, String key) throws IOException {
+    String type = null;
+    long size = -1L;
+    long mtime = -1L;
+    String[] header = null;
+    String cmSeries = null;
+    Map<String, String> metadata = new HashMap<>();
+    List<String> crops = new ArrayList<>();
+    List<String> weatherIds = new ArrayList<>();
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String field = p.getCurrentName();
+      p.nextToken();
+      switch (field) {
+        case "type":
+          type = p.getText();
+          break;
+        case "size":
+          size = p.getLongValue();
+          break;
+        case "mtime":
+          mtime = p.getLongValue();
+          break;
+        case "header":
+          header = readStrings(p).toArray(new String[0]);
+          break;
+        case "cm_series":
+          cmSeries = p.getText();
+          break;
+        case "metadata":
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String column = p.getCurrentName();
+            p.nextToken();
+            metadata.put(column, p.getText());
+          }
+          break;
+        case "crops":
+          crops = readStrings(p);
+          break;
+        case "wst_ids":
+          weatherIds = readStrings(p);
+          break;
+        default:
+          p.skipChildren();
+          break;
+      }
+    }
+    if (type == null) {
+      return;
+    }
+    Path path = basedir.resolve(key);
+    CropModelFile file;
+    switch (CropModelFileType.valueOf(type)) {
+      case ACE:
+        file = new ACEFile(path);
+        break;
+      case DOME:
+        file = new DOMEFile(path);
+        break;
+      case ACMO:
+        file = new ACMOFile(path, header, cmSeries, metadata, crops, weatherIds);
+        break;
+      case LINKAGE:
+        file = new LinkageFile(path);
+        break;
+      case MODEL_SPECIFIC:
+        file = new ModelSpecificFile(path);
+        break;
+      case SUPPLEMENTAL:
+      default:
+        file = new SupplementalFile(path);
+        break;
+    }
+    entries.put(key, new Entry(new FileFingerprint(size, mtime), file));
+  }
+
+  private static List<String> readStrings(JsonParser p) throws IOException {
+    List<String> values = new ArrayList<>();
+    while (p.nextToken() != JsonToken.END_ARRAY) {
+      values.add(p.getText());
+    }
+    return values;
+  }
+}
@@ -28,18 +28,23 @@
  */
 package org.agmip.cropmodel.dataset.util;
 
-import com.opencsv.CSVReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.agmip.cropmodel.dataset.filetype.ACMOFile;
+import org.agmip.cropmodel.dataset.filetype.ACMORowCursor;
+import org.agmip.cropmodel.dataset.filetype.ACMORowRanges;
+import org.agmip.cropmodel.dataset.filetype.ACMORowSample;
 
 /**
  *
@@ -52,140 +57,152 @@ public class LinkChecker {
 
   private static final Logger LOG = Logger.getLogger(LinkChecker.class.getName());
 
-  public static boolean checkLinkedData(Path path, PrintWriter out, PrintWriter err,
-      Set<String> eids, Set<String> sids, Set<String> wids,
-      Set<String> exnames, Set<String> soilids, Set<String> wstclim) {
+  // Positions in the row projection
+  private static final int EXNAME = 0;
+  private static final int EID = 1;
+  private static final int SOIL_ID = 2;
+  private static final int SID = 3;
+  private static final int WST_ID = 4;
+  private static final int CLIM_ID = 5;
+  private static final int WID = 6;
+  private static final String[] LINK_COLUMNS = {"EXNAME", "EID", "SOIL_ID", "SID", "WST_ID", "CLIM_ID", "WID"};
+  // Categories of the error counts
+  private static final String INVALID_ENTRY = "Invalid ACMO entry";
+  private static final String NO_EXNAME = "EXNAME not found";
+  private static final String NO_EID = "EID not found";
+  private static final String NO_SOIL_ID = "SOIL_ID not found";
+  private static final String NO_SID = "SID not found";
+  private static final String NO_WST_CLIM = "WST_ID not found with CLIM_ID";
+  private static final String NO_WID = "WID not found";
 
-    String[] searchColumns = {"EXNAME", "EID", "SOIL_ID", "SID", "WST_ID", "CLIM_ID", "WID", "FIELD_OVERLAY", "DOID", "SEASONAL_STRATEGY", "DSID", "ROTATIONAL_ANALYSIS", "DRID"};
-    int[] searchResults = new int[searchColumns.length];
-    boolean headerFound = false;
+  /**
+   * The linkage errors found in one range of an ACMO file, in the order they
+   * were found.
+   */
+  private static final class RangeLinks {
     boolean problemFound = false;
-    try (CSVReader reader = new CSVReader(new FileReader(path.toFile()))) {
-      Optional<String[]> line = Optional.ofNullable(reader.readNext());
-      List<String> errors = new ArrayList<>();
-      long lineNum = 0L;
-      while (line.isPresent()) {
-        lineNum++;
-        String[] l = line.get();
-        if (l[0].equals("")) {
-          problemFound = true;
-          errors.add("         Invalid ACMO entry on line " + lineNum);
-          line = Optional.ofNullable(reader.readNext());
-          continue;
-        }
-        char token = (l[0].startsWith("\"")) ? l[0].charAt(1) : l[0].charAt(0);
-        switch (token) {
-          case '#':
-            //This is the header. Need to find the columns for the IDs and metadata IDs
-            for (int i = 0; i < searchColumns.length; i++) {
-              for (int k = 0; k < l.length; k++) {
-                if (l[k].contains(searchColumns[i])) {
-                  searchResults[i] = k;
-                  break;
-                }
-              }
-            }
-            headerFound = true;
-            break;
-          case '*':
-            //This is an entry, need to make sure that the header is set already;
-            if (headerFound) {
-              boolean eidProblem = false;
-              boolean sidProblem = false;
-              boolean widProblem = false;
-              String wst_id = null;
-              String exname = null;
-              String soil_id = null;
-              for (int i = 0; i < searchColumns.length; i++) {
-                StringBuilder sb = new StringBuilder();
-                String res = l[searchResults[i]];
-                boolean pfound = false;
-                switch (searchColumns[i]) {
-                  case "EID":
-                    if (!eids.contains(res)) {
-                      sb.append("EID not found for [");
-                      sb.append(exname);
-                      sb.append("]: ");
-                      problemFound = true;
-                      pfound = true;
-                    }
-                    break;
-                  case "SID":
-                    if (!sids.contains(res)) {
-                      sb.append("SID not found for [");
-                      sb.append(soil_id);
-                      sb.append("]: ");
-                      problemFound = true;
-                      pfound = true;
-                    }
-                    break;
-                  case "WID":
-                    if (!wids.contains(res)) {
-                      sb.append("WID not found for [");
-                      sb.append(wst_id);
-                      sb.append("]: ");
-                      problemFound = true;
-                      pfound = true;
-                    }
-                    break;
-                  case "EXNAME":
-                    exname = ACMOFile.extractExname(res);
-                    res = exname;
-                    if (!exnames.contains(res)) {
-                      sb.append("EXNAME not found: ");
-                      pfound = true;
-                    }
-                    break;
-
-                  case "SOIL_ID":
-
-                    soil_id = res;
-                    if (!soilids.contains(res)) {
-                      sb.append("SOIL_ID not found: ");
-                      pfound = true;
-                    }
-
-                    break;
-                  case "WST_ID":
-                    wst_id = res;
-                    break;
-                  case "CLIM_ID":
-                    if (wst_id != null) {
-                      String merged = wst_id + "|" + res;
-                      if (!wstclim.contains(merged)) {
-                        sb.append("WST_ID ");
-                        sb.append(wst_id);
-                        sb.append(" not found with CLIM_ID: ");
-                        pfound = true;
-                      }
-                      wst_id = wst_id + " + " + res;
-                    }
-                    break;
-                  default:
-                    break;
-                }
-                if (pfound) {
-                  sb.append(res);
-                  String error = sb.toString();
-                  if (!errors.contains(error)) {
-                    errors.add(error);
-                  }
-                }
-              }
-            }
-            break;
-
-          default:
-            //Do nothing
-            break;
+    final DiagnosticLog<LinkError> errors;
+    // The errors kept, each is only listed once
+    final Set<String> seen = new HashSet<>();
+    // Batch and seasonal runs repeat the same few EXNAMEs on every line, so
+    // each is only normalized once per range.
+    final Map<String, String> exnameCache = new HashMap<>();
+    String lastRawExname = null;
+    String lastExname = null;
+
+    RangeLinks(int limit) {
+      errors = new DiagnosticLog<>(limit);
+    }
+
+    void add(String category, String error) {
+      if (seen.contains(error)) {
+        errors.count(category);
+      } else if (errors.isFull()) {
+        errors.skip(category);
+      } else {
+        seen.add(error);
+        errors.add(category, new LinkError(error, -1L));
+      }
+    }
+  }
+
+  /**
+   * An error message, and the line number to end it with once the line
+   * numbers of the file are known.
+   */
+  private static final class LinkError {
+    final String text;
+    final long line;
+
+    LinkError(String text, long line) {
+      this.text = text;
+      this.line = line;
+    }
+
+    String toString(long lineOffset) {
+      return (line < 0) ? text : text + (lineOffset + line);
+    }
+  }
+
+  public static boolean checkLinkedData(Path path, PrintWriter out, PrintWriter err, LinkageIndex index) {
+    return checkLinkedData(path, out, err, index, null);
+  }
+
+  public static boolean checkLinkedData(Path path, PrintWriter out, PrintWriter err, LinkageIndex index,
+      ExecutorService executor) {
+    return checkLinkedData(path, out, err, index, executor, DiagnosticLog.UNLIMITED, false);
+  }
+
+  /**
+   * Check the IDs of an ACMO file against the IDs of the dataset.
+   *
+   * @param executor the executor to check the ranges of a large file on, or
+   *   {@code null} to read the file on this thread
+   * @param errorLimit the number of errors to list, the rest are only counted
+   * @param failFast {@code true} to stop at the first data line that fails
+   * @return {@code true} if the experiments, soils and weathers of every
+   *   data line are in the dataset
+   */
+  public static boolean checkLinkedData(Path path, PrintWriter out, PrintWriter err, LinkageIndex index,
+      ExecutorService executor, int errorLimit, boolean failFast) {
+    return checkLinkedData(path, out, err, index, executor, errorLimit, failFast,
+        ACMORowRanges.DEFAULT_RANGE_SIZE, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Check the IDs of an ACMO file, split into ranges of at least
+   * {@code rangeSize} bytes for {@code processors} processors.
+   */
+  static boolean checkLinkedData(Path path, PrintWriter out, PrintWriter err, LinkageIndex index,
+      ExecutorService executor, int errorLimit, boolean failFast, long rangeSize, int processors) {
+
+    boolean problemFound = false;
+    boolean stopped = false;
+    Set<String> listed = new HashSet<>();
+    DiagnosticLog<String> errors = new DiagnosticLog<>(errorLimit);
+    try (ACMORowCursor rows = ACMOFile.openRows(path, LINK_COLUMNS)) {
+      // The lines up to the first header are checked here, the rest in ranges.
+      RangeLinks lead = new RangeLinks(errorLimit);
+      while (rows.getHeader() == null && !(failFast && lead.problemFound) && rows.next()) {
+        checkRow(lead, rows, rows.getLineNumber(), index);
+      }
+      List<RangeLinks> results = new ArrayList<>();
+      List<Long> lineOffsets = new ArrayList<>();
+      results.add(lead);
+      lineOffsets.add(0L);
+      if (failFast && lead.problemFound) {
+        stopped = true;
+      } else if (rows.getHeader() != null) {
+        for (ACMORowRanges.Range<RangeLinks> range : ACMORowRanges.visit(rows, executor, rangeSize, processors,
+            () -> new RangeLinks(errorLimit), (links, row, line) -> {
+              checkRow(links, row, line, index);
+              return !(failFast && links.problemFound);
+            })) {
+          results.add(range.getResult());
+          lineOffsets.add(range.getLineOffset());
+          stopped |= range.isStopped();
         }
-        line = Optional.ofNullable(reader.readNext());
+      }
+      for (int i = 0; i < results.size(); i++) {
+        RangeLinks links = results.get(i);
+        long lineOffset = lineOffsets.get(i);
+        problemFound |= links.problemFound;
+        errors.addAll(links.errors, (error) -> {
+          String text = error.toString(lineOffset);
+          return listed.add(text) ? text : null;
+        });
       }
       if (problemFound) {
         err.println("[FAILED] " + path.toString());
-        errors.stream().forEach((error) -> {
+        errors.getDiagnostics().stream().forEach((error) -> {
           err.println("         "+error);
         });
+        if (errors.isTruncated()) {
+          err.println("         " + errors.getSummary());
+        }
+        if (stopped) {
+          err.println("         Stopped checking this file at the first failure.");
+        }
         err.println();
       }
     } catch (IOException ex) {
@@ -193,4 +210,108 @@ public class LinkChecker {
     }
     return !problemFound;
   }
+
+  /**
+   * Check the IDs of a sample of the data lines of an ACMO file against the
+   * IDs of the dataset, for a quick answer on a large file.
+   *
+   * @param samples the number of data lines to draw at random
+   * @param random the source of the lines drawn
+   * @param errorLimit the number of errors to list, the rest are only counted
+   * @return {@code true} if the experiments, soils and weathers of every
+   *   data line checked are in the dataset
+   * @see ACMORowSample
+   */
+  public static boolean checkSampledLinkedData(Path path, PrintWriter out, PrintWriter err, LinkageIndex index,
+      int samples, Random random, int errorLimit) {
+    RangeLinks links = new RangeLinks(errorLimit);
+    ACMORowSample.Sample sample = null;
+    try (ACMORowCursor rows = ACMOFile.openRows(path, LINK_COLUMNS)) {
+      while (rows.getHeader() == null && rows.next()) {
+        checkRow(links, rows, rows.getLineNumber(), index);
+      }
+      if (rows.getHeader() != null) {
+        sample = ACMORowSample.visit(rows, samples, random, links, (l, row, line) -> {
+          checkRow(l, row, line, index);
+          return true;
+        });
+      }
+      if (links.problemFound) {
+        DiagnosticLog<String> errors = new DiagnosticLog<>(errorLimit);
+        errors.addAll(links.errors, (error) -> error.toString(0L));
+        err.println("[FAILED] " + path.toString());
+        errors.getDiagnostics().stream().forEach((error) -> {
+          err.println("         "+error);
+        });
+        if (errors.isTruncated()) {
+          err.println("         " + errors.getSummary());
+        }
+        if (sample != null && !sample.isComplete()) {
+          err.println("         Checked " + sample.getDataRows() + " sampled data lines.");
+        }
+        err.println();
+      }
+    } catch (IOException ex) {
+      LOG.log(Level.SEVERE, null, ex);
+    }
+    return !links.problemFound;
+  }
+
+  private static void checkRow(RangeLinks links, ACMORowCursor rows, long line, LinkageIndex index) {
+    switch (rows.getMarker()) {
+      case '\0':
+        links.problemFound = true;
+        links.errors.add(INVALID_ENTRY, new LinkError("         Invalid ACMO entry on line ", line));
+        break;
+      case '*':
+        //This is an entry, need to make sure that the header is set already;
+        if (rows.getHeader() == null) {
+          break;
+        }
+        String exname = null;
+        CharSequence rawExname = rows.get(EXNAME);
+        if (rawExname != null) {
+          if (links.lastRawExname == null || !links.lastRawExname.contentEquals(rawExname)) {
+            links.lastRawExname = rawExname.toString();
+            links.lastExname = links.exnameCache.computeIfAbsent(links.lastRawExname, ACMOFile::extractExname);
+          }
+          exname = links.lastExname;
+          if (!index.hasExname(exname)) {
+            links.add(NO_EXNAME, "EXNAME not found: " + exname);
+          }
+        }
+        CharSequence eid = rows.get(EID);
+        if (eid != null && !index.hasExperiment(eid)) {
+          links.add(NO_EID, "EID not found for [" + exname + "]: " + eid);
+          links.problemFound = true;
+        }
+        CharSequence soilId = rows.get(SOIL_ID);
+        if (soilId != null && !index.hasSoilId(soilId)) {
+          links.add(NO_SOIL_ID, "SOIL_ID not found: " + soilId);
+        }
+        CharSequence sid = rows.get(SID);
+        if (sid != null && !index.hasSoil(sid)) {
+          links.add(NO_SID, "SID not found for [" + soilId + "]: " + sid);
+          links.problemFound = true;
+        }
+        CharSequence wstId = rows.get(WST_ID);
+        CharSequence climId = rows.get(CLIM_ID);
+        if (wstId != null && climId != null) {
+          if (!index.hasWstClim(wstId, climId)) {
+            links.add(NO_WST_CLIM, "WST_ID " + wstId + " not found with CLIM_ID: " + climId);
+          }
+        }
+        CharSequence wid = rows.get(WID);
+        if (wid != null && !index.hasWeather(wid)) {
+          String station = (wstId != null && climId != null) ? wstId + " + " + climId : String.valueOf(wstId);
+          links.add(NO_WID, "WID not found for [" + station + "]: " + wid);
+          links.problemFound = true;
+        }
+        break;
+
+      default:
+        //Do nothing, header rows are mapped by the cursor
+        break;
+    }
+  }
 }
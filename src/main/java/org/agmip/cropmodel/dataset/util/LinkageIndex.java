@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Consumer;
+
+/**
+ * The IDs read from the ACEB files of a dataset, used to check the linkage
+ * of ACMO files. Every distinct string is stored once in a symbol table and
+ * each kind of ID is a bit set over the symbols; WST_ID and CLIM_ID pairs are
+ * stored as packed symbol pairs.
+ *
+ * <p>The index is filled by {@link ACEIdExtractor} and then sealed. Once
+ * sealed it can no longer change and can be queried from any thread. Queries
+ * take any {@link CharSequence}, such as the column views of an
+ * {@code ACMORowCursor}.
+ */
+public final class LinkageIndex implements ACEIdExtractor.IdVisitor {
+  private static final int BLOOM_BITS_PER_SYMBOL = 10;
+  private static final int BLOOM_HASHES = 7;
+
+  private final SymbolTable symbols = new SymbolTable();
+  private final BitSet experiments = new BitSet();
+  private final BitSet soils = new BitSet();
+  private final BitSet weathers = new BitSet();
+  private final BitSet exnames = new BitSet();
+  private final BitSet soilIds = new BitSet();
+  private final PairSet wstclim = new PairSet();
+  private final boolean useBloomFilter;
+  private long[] bloom = null;
+  private volatile boolean sealed = false;
+
+  public LinkageIndex() {
+    this(false);
+  }
+
+  /**
+   * @param useBloomFilter {@code true} to put a Bloom filter in front of the
+   * symbol table when the index is sealed. This speeds up lookups of IDs that
+   * are not in the dataset, at the cost of about 10 bits per symbol.
+   */
+  public LinkageIndex(boolean useBloomFilter) {
+    this.useBloomFilter = useBloomFilter;
+  }
+
+  @Override
+  public void experiment(String id, String exname) {
+    checkOpen();
+    experiments.set(symbols.intern(id));
+    if (!exname.equals("")) {
+      exnames.set(symbols.intern(exname));
+    }
+  }
+
+  @Override
+  public void soil(String id, String soilId) {
+    checkOpen();
+    soils.set(symbols.intern(id));
+    if (!soilId.equals("")) {
+      soilIds.set(symbols.intern(soilId));
+    }
+  }
+
+  @Override
+  public void weather(String id, String wstId, String climId) {
+    checkOpen();
+    weathers.set(symbols.intern(id));
+    if (!wstId.equals("")) {
+      wstclim.add(pack(symbols.intern(wstId), symbols.intern(climId)));
+    }
+  }
+
+  /**
+   * Stop any further changes to the index and build the Bloom filter, if one
+   * was asked for.
+   */
+  public synchronized void seal() {
+    if (sealed) {
+      return;
+    }
+    if (useBloomFilter && symbols.size() > 0) {
+      bloom = new long[Math.max(1, (symbols.size() * BLOOM_BITS_PER_SYMBOL + 63) / 64)];
+      symbols.forEach((symbol) -> {
+        long bits = (long) bloom.length * 64;
+        int h1 = symbol.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+          long bit = Math.floorMod(h1 + (long) i * h2, bits);
+          bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+      });
+    }
+    sealed = true;
+  }
+
+  public boolean isSealed() {
+    return sealed;
+  }
+
+  public boolean hasExperiment(CharSequence id) {
+    return has(experiments, id);
+  }
+
+  public boolean hasSoil(CharSequence id) {
+    return has(soils, id);
+  }
+
+  public boolean hasWeather(CharSequence id) {
+    return has(weathers, id);
+  }
+
+  public boolean hasExname(CharSequence exname) {
+    return has(exnames, exname);
+  }
+
+  public boolean hasSoilId(CharSequence soilId) {
+    return has(soilIds, soilId);
+  }
+
+  public boolean hasWstClim(CharSequence wstId, CharSequence climId) {
+    int wst = lookup(wstId);
+    if (wst < 0) {
+      return false;
+    }
+    int clim = lookup(climId);
+    return clim >= 0 && wstclim.contains(pack(wst, clim));
+  }
+
+  public int getExperimentCount() {
+    return experiments.cardinality();
+  }
+
+  public int getSoilCount() {
+    return soils.cardinality();
+  }
+
+  public int getWeatherCount() {
+    return weathers.cardinality();
+  }
+
+  public int getExnameCount() {
+    return exnames.cardinality();
+  }
+
+  public int getSoilIdCount() {
+    return soilIds.cardinality();
+  }
+
+  public int getWstClimCount() {
+    return wstclim.size();
+  }
+
+  private void checkOpen() {
+    if (sealed) {
+      throw new IllegalStateException("The linkage index is sealed");
+    }
+  }
+
+  private boolean has(BitSet kind, CharSequence value) {
+    int symbol = lookup(value);
+    return symbol >= 0 && kind.get(symbol);
+  }
+
+  private int lookup(CharSequence value) {
+    if (value == null) {
+      return -1;
+    }
+    if (bloom != null && !mightContain(value)) {
+      return -1;
+    }
+    return symbols.find(value);
+  }
+
+  private boolean mightContain(CharSequence value) {
+    long bits = (long) bloom.length * 64;
+    int h1 = hash(value);
+    int h2 = mix(h1);
+    for (int i = 0; i < BLOOM_HASHES; i++) {
+      long bit = Math.floorMod(h1 + (long) i * h2, bits);
+      if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long pack(int first, int second) {
+    return ((long) first << 32) | (second & 0xFFFFFFFFL);
+  }
+
+  /**
+   * The {@link String#hashCode()} of any character sequence, so that values
+   * read in place from a file can be looked up without copying them.
+   */
+  private static int hash(CharSequence value) {
+    if (value instanceof String) {
+      return value.hashCode();
+    }
+    int h = 0;
+    for (int i = 0; i < value.length(); i++) {
+      h = 31 * h + value.charAt(i);
+    }
+    return h;
+  }
+
+  private static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Open addressing table from string to a dense symbol number. Symbols are
+   * numbered in the order they were first added.
+   */
+  private static final class SymbolTable {
+    private String[] keys = new String[64];
+    private int[] ids = new int[64];
+    private String[] bySymbol = new String[32];
+    private int size = 0;
+
+    int size() {
+      return size;
+    }
+
+    int find(CharSequence key) {
+      int mask = keys.length - 1;
+      for (int slot = mix(hash(key)) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+        if (keys[slot].contentEquals(key)) {
+          return ids[slot];
+        }
+      }
+      return -1;
+    }
+
+    int intern(String key) {
+      int mask = keys.length - 1;
+      int slot = mix(key.hashCode()) & mask;
+      for (; keys[slot] != null; slot = (slot + 1) & mask) {
+        if (keys[slot].equals(key)) {
+          return ids[slot];
+        }
+      }
+      keys[slot] = key;
+      ids[slot] = size;
+      if (size == bySymbol.length) {
+        bySymbol = Arrays.copyOf(bySymbol, size * 2);
+      }
+      bySymbol[size] = key;
+      size++;
+      if (size * 3 > keys.length * 2) {
+        rehash();
+      }
+      return size - 1;
+    }
+
+    void forEach(Consumer<String> action) {
+      for (int i = 0; i < size; i++) {
+        action.accept(bySymbol[i]);
+      }
+    }
+
+    private void rehash() {
+      String[] oldKeys = keys;
+      int[] oldIds = ids;
+      keys = new String[oldKeys.length * 2];
+      ids = new int[oldKeys.length * 2];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          int slot = mix(oldKeys[i].hashCode()) & mask;
+          while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          keys[slot] = oldKeys[i];
+          ids[slot] = oldIds[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Open addressing set of packed symbol pairs. Zero marks a free slot, so the
+   * pair of symbol 0 with itself is kept in a flag.
+   */
+  private static final class PairSet {
+    private long[] slots = new long[64];
+    private boolean hasZero = false;
+    private int size = 0;
+
+    int size() {
+      return size;
+    }
+
+    boolean contains(long key) {
+      if (key == 0L) {
+        return hasZero;
+      }
+      int mask = slots.length - 1;
+      for (int slot = hash(key) & mask; slots[slot] != 0L; slot = (slot + 1) & mask) {
+        if (slots[slot] == key) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void add(long key) {
+      if (key == 0L) {
+        if (!hasZero) {
+          hasZero = true;
+          size++;
+        }
+        return;
+      }
+      int mask = slots.length - 1;
+      int slot = hash(key) & mask;
+      for (; slots[slot] != 0L; slot = (slot + 1) & mask) {
+        if (slots[slot] == key) {
+          return;
+        }
+      }
+      slots[slot] = key;
+      size++;
+      if (size * 3 > slots.length * 2) {
+        rehash();
+      }
+    }
+
+    private void rehash() {
+      long[] old = slots;
+      slots = new long[old.length * 2];
+      int mask = slots.length - 1;
+      for (long key : old) {
+        if (key != 0L) {
+          int slot = hash(key) & mask;
+          while (slots[slot] != 0L) {
+            slot = (slot + 1) & mask;
+          }
+          slots[slot] = key;
+        }
+      }
+    }
+
+    private static int hash(long key) {
+      return mix((int) (key ^ (key >>> 32)));
+    }
+  }
+}
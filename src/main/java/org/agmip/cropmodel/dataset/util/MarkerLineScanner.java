@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the physical lines of a text file as bytes, so that the marker
+ * character of each line ({@code !}, {@code *} or {@code #}) can be checked
+ * without decoding the line or splitting it into columns. Only the current
+ * line is held in memory; lines end at {@code \n}, {@code \r} or
+ * {@code \r\n}, the same as {@link java.io.BufferedReader#readLine()}.
+ *
+ * Reading starts with an optional prefix that was already read from the
+ * channel, so a file only has to be opened and read once.
+ *
+ * <p>When quote aware, line terminators inside quotes do not end a line, so
+ * each line is a whole CSV record. The fields of a line can then be read
+ * through reusable {@link Field} views, which only decode what is read.
+ */
+public final class MarkerLineScanner implements Closeable {
+  private static final int BUFFER_SIZE = 8192;
+  // The largest array most JVMs can allocate
+  private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+  private final ReadableByteChannel channel;
+  private byte[] buf;
+  // buf[pos..end) has not been scanned yet
+  private int pos;
+  private int end;
+  private int lineStart;
+  private int lineEnd;
+  // File offset of buf[0]
+  private long bufOffset = 0L;
+  private long lineNumber = 0L;
+  private boolean eof = false;
+  private boolean quoteAware = false;
+  private int maxLineLength = MAX_BUFFER_SIZE;
+  private boolean lineTooLong = false;
+  // Field bounds of the current line, split on first use
+  private int fieldCount = -1;
+  private int[] fieldStarts = new int[16];
+  private int[] fieldEnds = new int[16];
+  private boolean[] fieldEscaped = new boolean[16];
+
+  public MarkerLineScanner(ReadableByteChannel channel) {
+    this(new byte[BUFFER_SIZE], 0, channel);
+  }
+
+  /**
+   * Scan a file from the middle.
+   *
+   * @param channel the file, positioned at {@code offset}
+   * @param offset the file offset the channel is at
+   */
+  public MarkerLineScanner(ReadableByteChannel channel, long offset) {
+    this(new byte[BUFFER_SIZE], 0, channel);
+    this.bufOffset = offset;
+  }
+
+  /**
+   * Scan a file of which the first {@code length} bytes have already been
+   * read into {@code prefix}. The scanner takes over the array.
+   *
+   * @param prefix the start of the file
+   * @param length the number of bytes of {@code prefix} in use
+   * @param channel the rest of the file
+   */
+  public MarkerLineScanner(byte[] prefix, int length, ReadableByteChannel channel) {
+    this.channel = channel;
+    this.buf = (prefix.length == 0) ? new byte[BUFFER_SIZE] : prefix;
+    this.end = length;
+  }
+
+  /**
+   * @param quoteAware {@code true} to keep line terminators inside quotes as
+   *   part of the line
+   */
+  public void setQuoteAware(boolean quoteAware) {
+    this.quoteAware = quoteAware;
+  }
+
+  /**
+   * Give up on a line once more than {@code maxLineLength} bytes of it have
+   * been read without finding its end, such as a line read from a guessed
+   * position that starts inside a quoted field and runs on through the rest
+   * of the file.
+   *
+   * @param maxLineLength the longest line to read, in bytes
+   */
+  public void setMaxLineLength(int maxLineLength) {
+    this.maxLineLength = maxLineLength;
+  }
+
+  /**
+   * @return {@code true} if the scanner stopped at a line longer than the
+   *   maximum line length
+   */
+  public boolean isLineTooLong() {
+    return lineTooLong;
+  }
+
+  /**
+   * Move to the next line.
+   *
+   * @return {@code false} if the end of the file was reached, or a line
+   *   longer than the maximum line length
+   */
+  public boolean nextLine() throws IOException {
+    if (lineTooLong) {
+      return false;
+    }
+    lineStart = pos;
+    fieldCount = -1;
+    int i = pos;
+    boolean quoted = false;
+    while (true) {
+      if (quoteAware) {
+        for (; i < end; i++) {
+          byte b = buf[i];
+          if (b == '"') {
+            quoted = !quoted;
+          } else if (!quoted && (b == '\n' || b == '\r')) {
+            break;
+          }
+        }
+      } else {
+        while (i < end && buf[i] != '\n' && buf[i] != '\r') {
+          i++;
+        }
+      }
+      if (i < end) {
+        // A \r at the end of the buffer might be followed by a \n.
+        if (buf[i] == '\n' || i + 1 < end || eof) {
+          break;
+        }
+      } else if (eof) {
+        if (i == lineStart) {
+          lineEnd = i;
+          return false;
+        }
+        break;
+      }
+      if (i - lineStart >= maxLineLength) {
+        lineTooLong = true;
+        lineEnd = lineStart;
+        return false;
+      }
+      i -= fill();
+    }
+    lineEnd = i;
+    if (quoted && i == end) {
+      // A quote left open at the end of the file does not take in the last
+      // line terminator.
+      if (lineEnd > lineStart && buf[lineEnd - 1] == '\n') {
+        lineEnd--;
+      }
+      if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+    }
+    if (i < end) {
+      i += (buf[i] == '\r' && i + 1 < end && buf[i + 1] == '\n') ? 2 : 1;
+    }
+    pos = i;
+    lineNumber++;
+    return true;
+  }
+
+  /**
+   * Move the current line to the start of the buffer and read more of the
+   * file after it, growing the buffer if the line fills it.
+   *
+   * @return how far the current line was moved back
+   */
+  private int fill() throws IOException {
+    int shift = lineStart;
+    if (shift > 0) {
+      System.arraycopy(buf, shift, buf, 0, end - shift);
+      bufOffset += shift;
+      end -= shift;
+      pos -= shift;
+      lineStart = 0;
+    }
+    if (end == buf.length) {
+      if (buf.length == MAX_BUFFER_SIZE) {
+        throw new IOException("Line too long at offset " + bufOffset);
+      }
+      buf = Arrays.copyOf(buf, (int) Math.min((long) buf.length * 2, MAX_BUFFER_SIZE));
+    }
+    int read = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+    if (read < 0) {
+      eof = true;
+    } else {
+      end += read;
+    }
+    return shift;
+  }
+
+  /**
+   * @return the number of the current line, starting at 1
+   */
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  /**
+   * @return the file offset of the current line
+   */
+  public long getLineOffset() {
+    return bufOffset + lineStart;
+  }
+
+  /**
+   * @return the file offset of the line after the current one
+   */
+  public long getNextLineOffset() {
+    return bufOffset + pos;
+  }
+
+  /**
+   * @return the length of the current line in bytes, without the line
+   *   terminator
+   */
+  public int length() {
+    return lineEnd - lineStart;
+  }
+
+  /**
+   * The marker of the current line: its first character, or its second if
+   * the first is a quote.
+   *
+   * @return the marker, or {@code '\0'} if the line is too short to have one
+   */
+  public char marker() {
+    int len = length();
+    if (len == 0) {
+      return '\0';
+    }
+    if (buf[lineStart] == '"') {
+      return (len > 1) ? (char) (buf[lineStart + 1] & 0xff) : '\0';
+    }
+    return (char) (buf[lineStart] & 0xff);
+  }
+
+  /**
+   * Check whether the current line contains an ASCII string.
+   */
+  public boolean contains(String ascii) {
+    int n = ascii.length();
+    int last = lineEnd - n;
+    for (int i = lineStart; i <= last; i++) {
+      int k = 0;
+      while (k < n && (buf[i + k] & 0xff) == ascii.charAt(k)) {
+        k++;
+      }
+      if (k == n) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Split the current line into comma separated columns. Quotes around a
+   * column are removed and doubled quotes inside one are unescaped.
+   *
+   * @param charset the encoding of the file
+   * @return the columns of the current line
+   */
+  public String[] columns(Charset charset) {
+    Field field = newField(charset);
+    String[] columns = new String[getFieldCount()];
+    for (int k = 0; k < columns.length; k++) {
+      field.set(k);
+      columns[k] = field.toString();
+    }
+    return columns;
+  }
+
+  /**
+   * @return the number of comma separated fields in the current line
+   */
+  public int getFieldCount() {
+    if (fieldCount < 0) {
+      split();
+    }
+    return fieldCount;
+  }
+
+  /**
+   * Create a view to read fields of this scanner through.
+   *
+   * @param charset the encoding of the file
+   */
+  public Field newField(Charset charset) {
+    return new Field(charset);
+  }
+
+  private void split() {
+    fieldCount = 0;
+    int start = lineStart;
+    int quotes = 0;
+    for (int i = lineStart; i < lineEnd; i++) {
+      byte b = buf[i];
+      if (b == '"') {
+        quotes++;
+      } else if (b == ',' && (quotes & 1) == 0) {
+        addField(start, i, quotes);
+        start = i + 1;
+        quotes = 0;
+      }
+    }
+    addField(start, lineEnd, quotes);
+  }
+
+  private void addField(int start, int end, int quotes) {
+    if (fieldCount == fieldStarts.length) {
+      fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+      fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+      fieldEscaped = Arrays.copyOf(fieldEscaped, fieldCount * 2);
+    }
+    boolean escaped = quotes > 0;
+    // Most quoted fields only have the quotes around them, and are read in
+    // place without them.
+    if (quotes == 2 && end - start >= 2 && buf[start] == '"' && buf[end - 1] == '"') {
+      start++;
+      end--;
+      escaped = false;
+    }
+    fieldStarts[fieldCount] = start;
+    fieldEnds[fieldCount] = end;
+    fieldEscaped[fieldCount] = escaped;
+    fieldCount++;
+  }
+
+  /**
+   * A reusable view of one field of the current line. A view is only valid
+   * until the scanner moves to another line. Fields that are plain ASCII are
+   * read in place; anything else is decoded when the view is first read.
+   */
+  public final class Field implements CharSequence {
+    private final Charset charset;
+    private int start;
+    private int end;
+    private boolean escaped;
+    // The bytes read in place, or the unescaped copy of an escaped field
+    private byte[] bytes;
+    private int offset;
+    private int length = -1;
+    private byte[] scratch;
+    private String decoded;
+
+    private Field(Charset charset) {
+      this.charset = charset;
+    }
+
+    /**
+     * Point this view at a field of the current line.
+     *
+     * @param k the position of the field
+     * @return {@code false} if the current line has no such field
+     */
+    public boolean set(int k) {
+      if (k < 0 || k >= getFieldCount()) {
+        return false;
+      }
+      start = fieldStarts[k];
+      end = fieldEnds[k];
+      escaped = fieldEscaped[k];
+      length = -1;
+      decoded = null;
+      return true;
+    }
+
+    private void resolve() {
+      if (length >= 0) {
+        return;
+      }
+      bytes = buf;
+      offset = start;
+      int len = end - start;
+      if (escaped) {
+        if (scratch == null || scratch.length < len) {
+          scratch = new byte[Math.max(len, 64)];
+        }
+        len = unescape(start, end, scratch);
+        bytes = scratch;
+        offset = 0;
+      }
+      for (int i = offset; i < offset + len; i++) {
+        if (bytes[i] < 0) {
+          decoded = new String(bytes, offset, len, charset);
+          length = decoded.length();
+          return;
+        }
+      }
+      length = len;
+    }
+
+    @Override
+    public int length() {
+      resolve();
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      resolve();
+      if (decoded != null) {
+        return decoded.charAt(index);
+      }
+      if (index < 0 || index >= length) {
+        throw new IndexOutOfBoundsException(Integer.toString(index));
+      }
+      return (char) bytes[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+      return toString().substring(from, to);
+    }
+
+    @Override
+    public String toString() {
+      resolve();
+      return (decoded != null) ? decoded : new String(bytes, offset, length, StandardCharsets.US_ASCII);
+    }
+  }
+
+  /**
+   * Copy a field without its quotes, keeping one of each doubled quote
+   * inside quotes.
+   *
+   * @return the number of bytes copied
+   */
+  private int unescape(int from, int to, byte[] dst) {
+    int n = 0;
+    boolean quoted = false;
+    for (int i = from; i < to; i++) {
+      byte b = buf[i];
+      if (b == '"') {
+        if (quoted && i + 1 < to && buf[i + 1] == '"') {
+          dst[n++] = b;
+          i++;
+        } else {
+          quoted = !quoted;
+        }
+      } else {
+        dst[n++] = b;
+      }
+    }
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import com.opencsv.CSVReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts dataset packages. Packages written with duplicate files removed
+ * list each removed file in {@value #DUPLICATES_MANIFEST}, along with the
+ * packaged file it is identical to, so that they can be restored.
+ */
+public class PackageExtractor {
+  public static final String DUPLICATES_MANIFEST = "duplicates.csv";
+
+  private PackageExtractor() {
+  }
+
+  /**
+   * Extract a package into a directory.
+   *
+   * @param zipFile the package
+   * @param dir the directory to extract into
+   * @param expandDuplicates {@code true} to restore the files removed as
+   * duplicates by copying the file each is identical to
+   */
+  public static void extract(Path zipFile, Path dir, boolean expandDuplicates) throws IOException {
+    Path target = dir.toAbsolutePath().normalize();
+    List<String[]> duplicates = new ArrayList<>();
+    try (ZipPackageReader zip = new ZipPackageReader(zipFile)) {
+      for (ZipPackageReader.RawEntry entry : zip.getEntries().values()) {
+        String name = entry.getName();
+        Path dest = resolve(target, name);
+        if (name.endsWith("/")) {
+          Files.createDirectories(dest);
+          continue;
+        }
+        Files.createDirectories(dest.getParent());
+        try (InputStream in = zip.getInputStream(entry)) {
+          Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (expandDuplicates && (name.equals(DUPLICATES_MANIFEST) || name.endsWith("/" + DUPLICATES_MANIFEST))) {
+          try (CSVReader reader = new CSVReader(new InputStreamReader(Files.newInputStream(dest), StandardCharsets.UTF_8))) {
+            // Skip the header
+            reader.readNext();
+            String[] line;
+            while ((line = reader.readNext()) != null) {
+              if (line.length >= 2) {
+                duplicates.add(line);
+              }
+            }
+          }
+        }
+      }
+    }
+    for (String[] duplicate : duplicates) {
+      Path dest = resolve(target, duplicate[0]);
+      Files.createDirectories(dest.getParent());
+      Files.copy(resolve(target, duplicate[1]), dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static Path resolve(Path dir, String name) throws IOException {
+    Path dest = dir.resolve(name).normalize();
+    if (!dest.startsWith(dir)) {
+      throw new IOException("Entry outside of the extraction directory: " + name);
+    }
+    return dest;
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Records which files each entry of a package was made from, with a hash of
+ * each file's content. It is stored in the package, so that the next time the
+ * dataset is packaged unchanged entries can be copied from the previous
+ * package.
+ */
+public class PackageManifest {
+  public static final String MANIFEST_ENTRY = "package_manifest.json";
+  // Version 2 records paths relative to the dataset directory
+  private static final int VERSION = 2;
+  private static final int BUFFER_SIZE = 65536;
+  private final Map<String, List<Source>> entries = new LinkedHashMap<>();
+  private final Map<String, Source> sources = new HashMap<>();
+
+  /**
+   * A file that an entry was made from.
+   */
+  public static final class Source {
+    private final String path;
+    private final FileFingerprint fingerprint;
+    private final String hash;
+
+    Source(String path, FileFingerprint fingerprint, String hash) {
+      this.path = path;
+      this.fingerprint = fingerprint;
+      this.hash = hash;
+    }
+
+    public String getPath() {
+      return this.path;
+    }
+
+    public String getHash() {
+      return this.hash;
+    }
+
+    /**
+     * Two sources are equal if they are the same file with the same content.
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Source)) {
+        return false;
+      }
+      Source other = (Source) obj;
+      return this.path.equals(other.path) && this.hash.equals(other.hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, hash);
+    }
+  }
+
+  public void put(String entryName, List<Source> entrySources) {
+    entries.put(entryName, entrySources);
+    entrySources.forEach((source) -> sources.put(source.path, source));
+  }
+
+  public List<Source> getSources(String entryName) {
+    return entries.getOrDefault(entryName, Collections.emptyList());
+  }
+
+  /**
+   * Whether an entry was made from exactly these sources, in this order.
+   */
+  public boolean isUnchanged(String entryName, List<Source> entrySources) {
+    List<Source> previous = entries.get(entryName);
+    return previous != null && previous.equals(entrySources);
+  }
+
+  /**
+   * Describe a file as a source, recorded under {@code path}, its name
+   * relative to the dataset directory, so that a package stays valid when
+   * the dataset is moved. The file is hashed unless this manifest already
+   * has it with the same size and last modified time.
+   */
+  public Source describe(Path file, String path) throws IOException {
+    FileFingerprint fingerprint = FileFingerprint.of(file);
+    Source known = sources.get(path);
+    if (known != null && known.fingerprint.equals(fingerprint)) {
+      return known;
+    }
+    return new Source(path, fingerprint, hash(file));
+  }
+
+  private static String hash(Path file) throws IOException {
+    MessageDigest md = DOMEHandler.newDigest();
+    byte[] buf = new byte[BUFFER_SIZE];
+    try (InputStream in = Files.newInputStream(file)) {
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        md.update(buf, 0, n);
+      }
+    }
+    StringBuilder sb = new StringBuilder(40);
+    for (byte b : md.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Write the manifest as JSON. The stream is not closed.
+   */
+  public void write(OutputStream out) throws IOException {
+    try (JsonGenerator g = JsonFactoryProvider.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+      g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      g.writeStartObject();
+      g.writeNumberField("version", VERSION);
+      g.writeObjectFieldStart("entries");
+      for (Map.Entry<String, List<Source>> e : entries.entrySet()) {
+        g.writeArrayFieldStart(e.getKey());
+        for (Source source : e.getValue()) {
+          g.writeStartObject();
+          g.writeStringField("path", source.path);
+          g.writeNumberField("size", source.fingerprint.getSize());
+          g.writeNumberField("mtime", source.fingerprint.getLastModified());
+          g.writeStringField("sha1", source.hash);
+          g.writeEndObject();
+        }
+        g.writeEndArray();
+      }
+      g.writeEndObject();
+      g.writeEndObject();
+    }
+  }
+
+  /**
+   * Read a manifest written by {@link #write(OutputStream)}. An empty
+   * manifest is returned for a manifest of another version.
+   */
+  public static PackageManifest read(byte[] content) throws IOException {
+    PackageManifest manifest = new PackageManifest();
+    try (JsonParser p = JsonFactoryProvider.getFactory().createParser(content)) {
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Invalid package manifest");
+      }
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.getCurrentName();
+        p.nextToken();
+        switch (field) {
+          case "version":
+            if (p.getIntValue() != VERSION) {
+              return new PackageManifest();
+            }
+            break;
+          case "entries":
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+              String entryName = p.getCurrentName();
+              p.nextToken();
+              List<Source> entrySources = new ArrayList<>();
+              while (p.nextToken() == JsonToken.START_OBJECT) {
+                entrySources.add(readSource(p));
+              }
+              manifest.put(entryName, entrySources);
+            }
+            break;
+          default:
+            p.skipChildren();
+            break;
+        }
+      }
+    }
+    return manifest;
+  }
+
+  private static Source readSource(JsonParser p) throws IOException {
+    String path = null;
+    long size = -1L;
+    long mtime = -1L;
+    String hash = null;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String field = p.getCurrentName();
+      p.nextToken();
+      switch (field) {
+        case "path":
+          path = p.getText();
+          break;
+        case "size":
+          size = p.getLongValue();
+          break;
+        case "mtime":
+          mtime = p.getLongValue();
+          break;
+        case "sha1":
+          hash = p.getText();
+          break;
+        default:
+          p.skipChildren();
+          break;
+      }
+    }
+    if (path == null || hash == null) {
+      throw new IOException("Invalid package manifest");
+    }
+    return new Source(path, new FileFingerprint(size, mtime), hash);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every entry name used in a package, with its parent directories, so that
+ * new files can be given names that do not clash with any of them.
+ */
+public class PackageNameRegistry {
+  private final Set<String> names = new HashSet<>();
+  // Next suffix to try for each directory, base name and extension
+  private final Map<String, Integer> nextSuffix = new HashMap<>();
+
+  public boolean contains(String name) {
+    return names.contains(name);
+  }
+
+  /**
+   * Record an entry name and each of its parent directories.
+   */
+  public void add(String name) {
+    for (int i = name.indexOf('/'); i != -1; i = name.indexOf('/', i + 1)) {
+      names.add(name.substring(0, i));
+    }
+    names.add(name);
+  }
+
+  /**
+   * Record and return a name for {@code fileName} in {@code dir} that is not
+   * used yet. A used name gets the first free suffix before its extension,
+   * so {@code cultivar.CUL} becomes {@code cultivar_1.CUL},
+   * {@code cultivar_2.CUL} and so on.
+   *
+   * @param dir the directory, empty or ending with a slash
+   * @param fileName the name of the file
+   */
+  public String addUnique(String dir, String fileName) {
+    String dest = dir + fileName;
+    if (names.contains(dest)) {
+      String baseFileName;
+      String fileNameExt;
+      int baseIndex = fileName.indexOf(".");
+      if (baseIndex == -1) {
+        baseFileName = fileName;
+        fileNameExt = "";
+      } else {
+        baseFileName = fileName.substring(0, baseIndex);
+        fileNameExt = fileName.substring(baseIndex);
+      }
+      // Suffixes already handed out are never free again, so each one is
+      // only tried once.
+      String key = dir + baseFileName + "/" + fileNameExt;
+      int i = nextSuffix.getOrDefault(key, 1);
+      dest = dir + baseFileName + "_" + i + fileNameExt;
+      while (names.contains(dest)) {
+        i++;
+        dest = dir + baseFileName + "_" + i + fileNameExt;
+      }
+      nextSuffix.put(key, i + 1);
+    }
+    add(dest);
+    return dest;
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the entries of an existing zip file so that they can be copied into a
+ * new package without being decompressed.
+ */
+public class ZipPackageReader implements Closeable {
+  private static final int BUFFER_SIZE = 65536;
+  private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  private final FileChannel channel;
+  private final Map<String, RawEntry> entries = new LinkedHashMap<>();
+
+  /**
+   * An entry as found in the central directory.
+   */
+  public static class RawEntry {
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localOffset;
+
+    RawEntry(String name, int method, long crc, long compressedSize, long size, long localOffset) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localOffset = localOffset;
+    }
+
+    public String getName() {
+      return this.name;
+    }
+
+    public int getMethod() {
+      return this.method;
+    }
+
+    public long getCrc() {
+      return this.crc;
+    }
+
+    public long getCompressedSize() {
+      return this.compressedSize;
+    }
+
+    public long getSize() {
+      return this.size;
+    }
+  }
+
+  public ZipPackageReader(Path zipFile) throws IOException {
+    this.channel = FileChannel.open(zipFile, StandardOpenOption.READ);
+    try {
+      readCentralDirectory();
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  public RawEntry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  public Map<String, RawEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Copy the compressed data of an entry, as it is stored in the zip file.
+   */
+  public void copyRaw(RawEntry entry, OutputStream out) throws IOException {
+    long position = dataOffset(entry);
+    long remaining = entry.compressedSize;
+    ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    while (remaining > 0) {
+      buf.clear();
+      buf.limit((int) Math.min(BUFFER_SIZE, remaining));
+      int n = channel.read(buf, position);
+      if (n < 0) {
+        throw new IOException("Unexpected end of zip file in " + entry.name);
+      }
+      out.write(buf.array(), 0, n);
+      position += n;
+      remaining -= n;
+    }
+  }
+
+  /**
+   * Open the uncompressed content of an entry.
+   */
+  public InputStream getInputStream(RawEntry entry) throws IOException {
+    InputStream raw = new EntryInputStream(dataOffset(entry), entry.compressedSize);
+    if (entry.method == METHOD_STORED) {
+      return raw;
+    }
+    if (entry.method != METHOD_DEFLATED) {
+      throw new IOException("Unsupported compression method for " + entry.name);
+    }
+    Inflater inflater = new Inflater(true);
+    return new InflaterInputStream(raw, inflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        inflater.end();
+      }
+    };
+  }
+
+  /**
+   * Read the uncompressed content of a small entry.
+   */
+  public byte[] readEntry(RawEntry entry) throws IOException {
+    if (entry.compressedSize > Integer.MAX_VALUE || entry.size > Integer.MAX_VALUE) {
+      throw new IOException("Entry too large to read: " + entry.name);
+    }
+    ByteArrayOutputStream raw = new ByteArrayOutputStream((int) entry.compressedSize);
+    copyRaw(entry, raw);
+    if (entry.method == METHOD_STORED) {
+      return raw.toByteArray();
+    }
+    if (entry.method != METHOD_DEFLATED) {
+      throw new IOException("Unsupported compression method for " + entry.name);
+    }
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(raw.toByteArray());
+      byte[] content = new byte[(int) entry.size];
+      int n = 0;
+      while (n < content.length && !inflater.finished()) {
+        int read = inflater.inflate(content, n, content.length - n);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += read;
+      }
+      if (n != content.length) {
+        throw new IOException("Corrupt entry " + entry.name);
+      }
+      return content;
+    } catch (DataFormatException ex) {
+      throw new IOException("Corrupt entry " + entry.name, ex);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private long dataOffset(RawEntry entry) throws IOException {
+    ByteBuffer header = read(entry.localOffset, 30);
+    if (header.getInt(0) != 0x04034b50) {
+      throw new IOException("Missing local header for " + entry.name);
+    }
+    return entry.localOffset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+  }
+
+  /**
+   * The compressed data of one entry, read from the shared channel by
+   * position.
+   */
+  private class EntryInputStream extends InputStream {
+    private long position;
+    private long remaining;
+
+    EntryInputStream(long position, long length) {
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+      if (n < 0) {
+        throw new IOException("Unexpected end of zip file");
+      }
+      position += n;
+      remaining -= n;
+      return n;
+    }
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, position + buf.position()) < 0) {
+        throw new IOException("Unexpected end of zip file");
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+
+  private void readCentralDirectory() throws IOException {
+    long fileSize = channel.size();
+    int tailSize = (int) Math.min(fileSize, 0xFFFF + 22);
+    ByteBuffer tail = read(fileSize - tailSize, tailSize);
+    int eocd = -1;
+    for (int i = tailSize - 22; i >= 0; i--) {
+      if (tail.getInt(i) == 0x06054b50) {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd == -1) {
+      throw new IOException("Not a zip file");
+    }
+    long count = tail.getShort(eocd + 10) & 0xFFFF;
+    long cdSize = tail.getInt(eocd + 12) & ZIP64_LIMIT;
+    long cdOffset = tail.getInt(eocd + 16) & ZIP64_LIMIT;
+    long eocdPosition = fileSize - tailSize + eocd;
+    if ((count == 0xFFFF || cdSize == ZIP64_LIMIT || cdOffset == ZIP64_LIMIT) && eocdPosition >= 20) {
+      ByteBuffer locator = read(eocdPosition - 20, 20);
+      if (locator.getInt(0) == 0x07064b50) {
+        ByteBuffer zip64 = read(locator.getLong(8), 56);
+        if (zip64.getInt(0) == 0x06064b50) {
+          count = zip64.getLong(32);
+          cdSize = zip64.getLong(40);
+          cdOffset = zip64.getLong(48);
+        }
+      }
+    }
+    if (cdSize > Integer.MAX_VALUE) {
+      throw new IOException("Central directory too large");
+    }
+    ByteBuffer cd = read(cdOffset, (int) cdSize);
+    int pos = 0;
+    for (long i = 0; i < count; i++) {
+      if (cd.getInt(pos) != 0x02014b50) {
+        throw new IOException("Corrupt central directory");
+      }
+      int method = cd.getShort(pos + 10) & 0xFFFF;
+      long crc = cd.getInt(pos + 16) & ZIP64_LIMIT;
+      long compressedSize = cd.getInt(pos + 20) & ZIP64_LIMIT;
+      long size = cd.getInt(pos + 24) & ZIP64_LIMIT;
+      int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+      int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+      int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+      long localOffset = cd.getInt(pos + 42) & ZIP64_LIMIT;
+      byte[] nameBytes = new byte[nameLength];
+      cd.position(pos + 46);
+      cd.get(nameBytes);
+      // Zip64 values follow in this order, only for fields that overflowed
+      int extra = pos + 46 + nameLength;
+      int extraEnd = extra + extraLength;
+      while (extra + 4 <= extraEnd) {
+        int id = cd.getShort(extra) & 0xFFFF;
+        int length = cd.getShort(extra + 2) & 0xFFFF;
+        if (id == 0x0001) {
+          int field = extra + 4;
+          if (size == ZIP64_LIMIT) {
+            size = cd.getLong(field);
+            field += 8;
+          }
+          if (compressedSize == ZIP64_LIMIT) {
+            compressedSize = cd.getLong(field);
+            field += 8;
+          }
+          if (localOffset == ZIP64_LIMIT) {
+            localOffset = cd.getLong(field);
+          }
+        }
+        extra += 4 + length;
+      }
+      String name = new String(nameBytes, StandardCharsets.UTF_8);
+      entries.put(name, new RawEntry(name, method, crc, compressedSize, size, localOffset));
+      pos = extraEnd + commentLength;
+    }
+  }
+}
@@ -0,0 +1,666 @@
+/*
+ * Copyright (c) 2012-2016, AgMIP All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the AgMIP nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip file in a single forward pass. Entries are written in the order
+ * they are added. When an executor is given, files are compressed on it into
+ * memory buffers while earlier entries are being written; files too large to
+ * buffer are compressed on the calling thread.
+ *
+ * <p>Content that is already compressed, such as the gzip streams of ACEB and
+ * DOME files, is stored as is. Its CRC is computed ahead on the executor;
+ * without one, or for content of unknown size, it is written straight
+ * through and its local header patched afterwards when writing to a seekable
+ * channel, or otherwise wrapped in uncompressed deflate blocks so that it can
+ * be followed by a data descriptor.
+ *
+ * <p>Zip64 records are written only for entries, offsets or entry counts that
+ * need them.
+ */
+public class ZipPackageWriter implements Closeable {
+  /**
+   * Writes the content of an entry whose size is not known in advance.
+   */
+  public interface EntryContent {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private static final int BUFFER_SIZE = 65536;
+  // Files up to this size are compressed into a buffer by the executor
+  private static final long BUFFERED_ENTRY_LIMIT = 8L << 20;
+  // Limit on the size of files being compressed ahead of the writer
+  private static final long PENDING_BYTES_LIMIT = 64L << 20;
+  private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+  private static final int ZIP64_COUNT_LIMIT = 0xFFFF;
+  private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+  private static final int FLAG_UTF8 = 0x800;
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+  private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(
+      Arrays.asList("aceb", "dome", "gz", "tgz", "zip", "bz2", "xz", "7z"));
+
+  private final CountingOutputStream out;
+  private final SeekableByteChannel channel;
+  private final ExecutorService executor;
+  private final Deque<PendingEntry> pending = new ArrayDeque<>();
+  private final List<CentralEntry> central = new ArrayList<>();
+  private final int dosTime;
+  private long pendingBytes = 0L;
+  private boolean closed = false;
+  private boolean aborted = false;
+
+  /**
+   * @param out where to write the zip file, it is closed with this writer
+   * @param executor the executor used to compress files, or {@code null} to
+   * compress them on the calling thread
+   */
+  public ZipPackageWriter(OutputStream out, ExecutorService executor) {
+    this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+    this.channel = null;
+    this.executor = executor;
+    this.dosTime = toDosTime(LocalDateTime.now());
+  }
+
+  /**
+   * Write to a channel positioned at its start, such as a new file. The
+   * channel is closed with this writer.
+   *
+   * @param channel where to write the zip file
+   * @param executor the executor used to compress files, or {@code null} to
+   * compress them on the calling thread
+   */
+  public ZipPackageWriter(SeekableByteChannel channel, ExecutorService executor) {
+    this.out = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    this.channel = channel;
+    this.executor = executor;
+    this.dosTime = toDosTime(LocalDateTime.now());
+  }
+
+  public void putDirectory(String name) throws IOException {
+    drain(0L);
+    String dirName = name.endsWith("/") ? name : name + "/";
+    writeBuffered(dirName, METHOD_STORED, new EntryBuffer(), 0L, 0L);
+  }
+
+  /**
+   * Add a file. Files that are already compressed, by their extension or
+   * gzip header, are stored; all others are compressed.
+   */
+  public void putFile(String name, Path source) throws IOException {
+    long size = Files.size(source);
+    if (isCompressed(source)) {
+      if (executor == null) {
+        // Nothing can run ahead, so copy the file once and get its CRC on
+        // the way.
+        drain(0L);
+        if (channel == null) {
+          writeStreamed(name, (entry) -> Files.copy(source, entry), Deflater.NO_COMPRESSION);
+        } else {
+          writePatched(name, (entry) -> Files.copy(source, entry), size);
+        }
+        return;
+      }
+      // Only the CRC is computed ahead, the file is copied when written.
+      pending.add(new PendingEntry(name, METHOD_STORED, source, 0L, run(() -> checksum(source))));
+      return;
+    }
+    if (executor == null || size > BUFFERED_ENTRY_LIMIT) {
+      drain(0L);
+      writeStreamed(name, (entry) -> Files.copy(source, entry), Deflater.DEFAULT_COMPRESSION);
+      return;
+    }
+    drain(PENDING_BYTES_LIMIT - size);
+    pending.add(new PendingEntry(name, METHOD_DEFLATED, source, size, run(() -> compress(source))));
+    pendingBytes += size;
+  }
+
+  /**
+   * Add an entry written by {@code content}, compressed as it is written.
+   */
+  public void putEntry(String name, EntryContent content) throws IOException {
+    drain(0L);
+    writeStreamed(name, content, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Add an entry written by {@code content} that is already compressed, so it
+   * is not compressed again.
+   */
+  public void putCompressedEntry(String name, EntryContent content) throws IOException {
+    drain(0L);
+    if (channel == null) {
+      writeStreamed(name, content, Deflater.NO_COMPRESSION);
+    } else {
+      writePatched(name, content, -1L);
+    }
+  }
+
+  /**
+   * Copy an entry from another zip file as it is, without decompressing it.
+   */
+  public void putRawEntry(String name, ZipPackageReader source, ZipPackageReader.RawEntry entry) throws IOException {
+    drain(0L);
+    CentralEntry e = new CentralEntry(name, entry.getMethod(), out.count);
+    e.crc = entry.getCrc();
+    e.size = entry.getSize();
+    e.compressedSize = entry.getCompressedSize();
+    writeLocalHeader(e, 0, e.size >= ZIP64_LIMIT || e.compressedSize >= ZIP64_LIMIT);
+    source.copyRaw(entry, out);
+    central.add(e);
+  }
+
+  /**
+   * Give up on the package after a failure. Closing the writer then skips
+   * the remaining entries and the central directory, so the output is not
+   * mistaken for a complete zip file.
+   */
+  public void abort() {
+    aborted = true;
+  }
+
+  /**
+   * Write every remaining entry and the central directory, then close the
+   * underlying stream. After {@link #abort()}, only the stream is closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (aborted) {
+        return;
+      }
+      drain(0L);
+      writeCentralDirectory();
+      out.flush();
+    } finally {
+      pending.forEach((entry) -> entry.compressed.cancel(true));
+      out.close();
+    }
+  }
+
+  /**
+   * Write pending entries, in order, until no more than {@code limit} bytes
+   * of files are waiting to be compressed. A limit of 0 writes them all.
+   */
+  private void drain(long limit) throws IOException {
+    while (!pending.isEmpty() && (limit <= 0L || pendingBytes > limit)) {
+      PendingEntry entry = pending.poll();
+      pendingBytes -= entry.pendingBytes;
+      EntryBuffer buf;
+      try {
+        buf = entry.compressed.join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof IOException) {
+          throw (IOException) ex.getCause();
+        }
+        throw ex;
+      }
+      if (entry.method == METHOD_STORED) {
+        writeStored(entry.name, entry.source, buf.crc, buf.size);
+      } else {
+        writeBuffered(entry.name, METHOD_DEFLATED, buf, buf.crc, buf.size);
+      }
+    }
+  }
+
+  private interface Task<T> {
+    T call() throws IOException;
+  }
+
+  private <T> CompletableFuture<T> run(Task<T> task) {
+    if (executor == null) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      try {
+        result.complete(task.call());
+      } catch (IOException ex) {
+        result.completeExceptionally(new CompletionException(ex));
+      }
+      return result;
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return task.call();
+      } catch (IOException ex) {
+        throw new CompletionException(ex);
+      }
+    }, executor);
+  }
+
+  private static boolean isCompressed(Path source) throws IOException {
+    String fileName = source.getFileName().toString();
+    int dot = fileName.lastIndexOf('.');
+    if (dot != -1 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+      return true;
+    }
+    try (InputStream in = Files.newInputStream(source)) {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    }
+  }
+
+  private static EntryBuffer checksum(Path source) throws IOException {
+    EntryBuffer buf = new EntryBuffer();
+    CRC32 crc = new CRC32();
+    byte[] b = new byte[BUFFER_SIZE];
+    try (InputStream in = Files.newInputStream(source)) {
+      int n;
+      while ((n = in.read(b)) != -1) {
+        crc.update(b, 0, n);
+        buf.size += n;
+      }
+    }
+    buf.crc = crc.getValue();
+    return buf;
+  }
+
+  private static EntryBuffer compress(Path source) throws IOException {
+    EntryBuffer buf = new EntryBuffer();
+    try (DeflatingOutputStream entry = new DeflatingOutputStream(buf, Deflater.DEFAULT_COMPRESSION)) {
+      Files.copy(source, entry);
+      entry.finish();
+      buf.crc = entry.crc.getValue();
+      buf.size = entry.size;
+    }
+    return buf;
+  }
+
+  /**
+   * Write an entry whose compressed content is already known, with its sizes
+   * in the local header.
+   */
+  private void writeBuffered(String name, int method, EntryBuffer data, long crc, long size) throws IOException {
+    CentralEntry e = new CentralEntry(name, method, out.count);
+    e.crc = crc;
+    e.size = size;
+    e.compressedSize = data.size();
+    boolean zip64 = e.size >= ZIP64_LIMIT || e.compressedSize >= ZIP64_LIMIT;
+    writeLocalHeader(e, 0, zip64);
+    data.writeTo(out);
+    central.add(e);
+  }
+
+  /**
+   * Copy a file that is stored as is, with the CRC and size computed ahead.
+   * The file is checked against both as it is copied.
+   */
+  private void writeStored(String name, Path source, long crc, long size) throws IOException {
+    CentralEntry e = new CentralEntry(name, METHOD_STORED, out.count);
+    e.crc = crc;
+    e.size = size;
+    e.compressedSize = size;
+    writeLocalHeader(e, 0, size >= ZIP64_LIMIT);
+    long start = out.count;
+    CheckedOutputStream entry = new CheckedOutputStream(out, new CRC32());
+    Files.copy(source, entry);
+    if (out.count - start != size || entry.getChecksum().getValue() != crc) {
+      throw new IOException(source + " changed while it was being packaged");
+    }
+    central.add(e);
+  }
+
+  /**
+   * Write stored content, then go back and fill in its CRC and, if it was not
+   * known, its size. Content of unknown size, given as -1, always has a Zip64
+   * field in its local header so that any size fits.
+   */
+  private void writePatched(String name, EntryContent content, long size) throws IOException {
+    CentralEntry e = new CentralEntry(name, METHOD_STORED, out.count);
+    boolean zip64 = size < 0L || size >= ZIP64_LIMIT;
+    e.size = Math.max(size, 0L);
+    e.compressedSize = e.size;
+    writeLocalHeader(e, 0, zip64);
+    long start = out.count;
+    CheckedOutputStream entry = new CheckedOutputStream(out, new CRC32());
+    content.writeTo(entry);
+    if (size >= 0L && out.count - start != size) {
+      throw new IOException(name + " changed while it was being packaged");
+    }
+    e.crc = entry.getChecksum().getValue();
+    e.size = out.count - start;
+    e.compressedSize = e.size;
+    out.flush();
+    long end = channel.position();
+    ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt((int) e.crc);
+    header.flip();
+    channel.position(e.offset + 14);
+    writeFully(header);
+    if (zip64) {
+      ByteBuffer sizes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      sizes.putLong(e.size);
+      sizes.putLong(e.compressedSize);
+      sizes.flip();
+      channel.position(e.offset + 30 + e.name.length + 4);
+      writeFully(sizes);
+    }
+    channel.position(end);
+    central.add(e);
+  }
+
+  private void writeFully(ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  /**
+   * Write an entry as it is compressed, followed by a data descriptor with
+   * its sizes.
+   */
+  private void writeStreamed(String name, EntryContent content, int level) throws IOException {
+    CentralEntry e = new CentralEntry(name, METHOD_DEFLATED, out.count);
+    writeLocalHeader(e, FLAG_DATA_DESCRIPTOR, false);
+    long start = out.count;
+    try (DeflatingOutputStream entry = new DeflatingOutputStream(out, level)) {
+      content.writeTo(entry);
+      entry.finish();
+      e.crc = entry.crc.getValue();
+      e.size = entry.size;
+    }
+    e.compressedSize = out.count - start;
+    writeInt(0x08074b50L);
+    writeInt(e.crc);
+    if (e.size >= ZIP64_LIMIT || e.compressedSize >= ZIP64_LIMIT) {
+      writeLong(e.compressedSize);
+      writeLong(e.size);
+    } else {
+      writeInt(e.compressedSize);
+      writeInt(e.size);
+    }
+    central.add(e);
+  }
+
+  private void writeLocalHeader(CentralEntry e, int flags, boolean zip64) throws IOException {
+    e.flags = FLAG_UTF8 | flags;
+    writeInt(0x04034b50L);
+    writeShort(zip64 ? 45 : 20);
+    writeShort(e.flags);
+    writeShort(e.method);
+    writeInt(dosTime);
+    if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+      writeInt(0);
+      writeInt(0);
+      writeInt(0);
+    } else {
+      writeInt(e.crc);
+      // With a Zip64 field, both sizes are read from it
+      writeInt(zip64 ? ZIP64_LIMIT : e.compressedSize);
+      writeInt(zip64 ? ZIP64_LIMIT : e.size);
+    }
+    writeShort(e.name.length);
+    writeShort(zip64 ? 20 : 0);
+    out.write(e.name);
+    if (zip64) {
+      writeShort(0x0001);
+      writeShort(16);
+      writeLong(e.size);
+      writeLong(e.compressedSize);
+    }
+  }
+
+  private void writeCentralDirectory() throws IOException {
+    long start = out.count;
+    for (CentralEntry e : central) {
+      boolean sizes64 = e.size >= ZIP64_LIMIT || e.compressedSize >= ZIP64_LIMIT;
+      boolean offset64 = e.offset >= ZIP64_LIMIT;
+      int extra = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+      int version = extra > 0 ? 45 : 20;
+      writeInt(0x02014b50L);
+      writeShort(version);
+      writeShort(version);
+      writeShort(e.flags);
+      writeShort(e.method);
+      writeInt(dosTime);
+      writeInt(e.crc);
+      writeInt(sizes64 ? ZIP64_LIMIT : e.compressedSize);
+      writeInt(sizes64 ? ZIP64_LIMIT : e.size);
+      writeShort(e.name.length);
+      writeShort(extra > 0 ? extra + 4 : 0);
+      writeShort(0);
+      writeShort(0);
+      writeShort(0);
+      writeInt(e.isDirectory() ? 0x10 : 0);
+      writeInt(offset64 ? ZIP64_LIMIT : e.offset);
+      out.write(e.name);
+      if (extra > 0) {
+        writeShort(0x0001);
+        writeShort(extra);
+        if (sizes64) {
+          writeLong(e.size);
+          writeLong(e.compressedSize);
+        }
+        if (offset64) {
+          writeLong(e.offset);
+        }
+      }
+    }
+    long end = out.count;
+    long size = end - start;
+    int count = central.size();
+    if (count >= ZIP64_COUNT_LIMIT || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT) {
+      writeInt(0x06064b50L);
+      writeLong(44);
+      writeShort(45);
+      writeShort(45);
+      writeInt(0);
+      writeInt(0);
+      writeLong(count);
+      writeLong(count);
+      writeLong(size);
+      writeLong(start);
+      writeInt(0x07064b50L);
+      writeInt(0);
+      writeLong(end);
+      writeInt(1);
+    }
+    writeInt(0x06054b50L);
+    writeShort(0);
+    writeShort(0);
+    writeShort(Math.min(count, ZIP64_COUNT_LIMIT));
+    writeShort(Math.min(count, ZIP64_COUNT_LIMIT));
+    writeInt(Math.min(size, ZIP64_LIMIT));
+    writeInt(Math.min(start, ZIP64_LIMIT));
+    writeShort(0);
+  }
+
+  private void writeShort(int v) throws IOException {
+    out.write(v & 0xFF);
+    out.write((v >>> 8) & 0xFF);
+  }
+
+  private void writeInt(long v) throws IOException {
+    writeShort((int) (v & 0xFFFF));
+    writeShort((int) ((v >>> 16) & 0xFFFF));
+  }
+
+  private void writeLong(long v) throws IOException {
+    writeInt(v & 0xFFFFFFFFL);
+    writeInt(v >>> 32);
+  }
+
+  private static int toDosTime(LocalDateTime t) {
+    if (t.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+        | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+  }
+
+  private static class CentralEntry {
+    final byte[] name;
+    final int method;
+    final long offset;
+    int flags;
+    long crc;
+    long size;
+    long compressedSize;
+
+    CentralEntry(String name, int method, long offset) {
+      this.name = name.getBytes(StandardCharsets.UTF_8);
+      this.method = method;
+      this.offset = offset;
+    }
+
+    boolean isDirectory() {
+      return name.length > 0 && name[name.length - 1] == '/';
+    }
+  }
+
+  private static class PendingEntry {
+    final String name;
+    final int method;
+    final Path source;
+    final long pendingBytes;
+    final CompletableFuture<EntryBuffer> compressed;
+
+    PendingEntry(String name, int method, Path source, long pendingBytes, CompletableFuture<EntryBuffer> compressed) {
+      this.name = name;
+      this.method = method;
+      this.source = source;
+      this.pendingBytes = pendingBytes;
+      this.compressed = compressed;
+    }
+  }
+
+  /**
+   * The compressed content of a file, or for a stored file only its CRC and
+   * size.
+   */
+  private static class EntryBuffer extends ByteArrayOutputStream {
+    long crc;
+    long size;
+  }
+
+  /**
+   * Raw deflate of everything written to it, keeping the CRC and size of the
+   * uncompressed data. Closing it does not close the target.
+   */
+  private static class DeflatingOutputStream extends OutputStream {
+    private final OutputStream target;
+    private final Deflater deflater;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    final CRC32 crc = new CRC32();
+    long size = 0L;
+
+    DeflatingOutputStream(OutputStream target, int level) {
+      this.target = target;
+      this.deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      crc.update(b, off, len);
+      size += len;
+      deflater.setInput(b, off, len);
+      while (!deflater.needsInput()) {
+        target.write(buf, 0, deflater.deflate(buf));
+      }
+    }
+
+    void finish() throws IOException {
+      deflater.finish();
+      while (!deflater.finished()) {
+        target.write(buf, 0, deflater.deflate(buf));
+      }
+    }
+
+    @Override
+    public void close() {
+      deflater.end();
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private final OutputStream target;
+    long count = 0L;
+
+    CountingOutputStream(OutputStream target) {
+      this.target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      target.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      target.close();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.agmip.cropmodel.dataset;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import org.agmip.cropmodel.dataset.filetype.CropModelFile.CropModelFileType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class DatasetWatcherTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Path basedir;
+  private Path subdir;
+  private Path acmo;
+
+  @Before
+  public void setup() throws IOException, URISyntaxException {
+    Path clean = Paths.get(getClass().getResource("/org/agmip/cropmodel/dataset/filetype/clean.acmo").toURI());
+    basedir = folder.getRoot().toPath();
+    subdir = Files.createDirectory(basedir.resolve("acmo"));
+    acmo = Files.copy(clean, subdir.resolve("clean.csv"));
+  }
+
+  @Test
+  public void testDirectoryChangeKeepsFiles() {
+    CropModelDataset dataset = new CropModelDataset();
+    dataset.identifyDatasetFiles(basedir);
+    assertEquals(CropModelFileType.ACMO, dataset.lookupFileType(acmo));
+    dataset.applyChanges(Collections.singletonList(subdir), false);
+    assertEquals(CropModelFileType.ACMO, dataset.lookupFileType(acmo));
+  }
+
+  @Test
+  public void testDirectoryDeleteDropsFiles() throws IOException {
+    CropModelDataset dataset = new CropModelDataset();
+    dataset.identifyDatasetFiles(basedir);
+    Files.delete(acmo);
+    Files.delete(subdir);
+    dataset.applyChanges(Collections.singletonList(subdir), false);
+    assertNull(dataset.lookupFileType(acmo));
+  }
+
+  @Test
+  public void testTouchedDirectoryKeepsFiles() throws IOException, InterruptedException {
+    CropModelDataset dataset = new CropModelDataset();
+    dataset.identifyDatasetFiles(basedir);
+    assertTrue(dataset.startWatching());
+    try {
+      Files.setLastModifiedTime(subdir, FileTime.fromMillis(System.currentTimeMillis() + 60000L));
+      Thread.sleep(DatasetWatcher.QUIET_PERIOD_MS * 4);
+      assertEquals(CropModelFileType.ACMO, dataset.lookupFileType(acmo));
+    } finally {
+      dataset.stopWatching();
+    }
+  }
+}
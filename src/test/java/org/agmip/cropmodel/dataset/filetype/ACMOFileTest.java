@@ -1,11 +1,19 @@
 package org.agmip.cropmodel.dataset.filetype;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -67,6 +75,16 @@ public class ACMOFileTest {
     }
   }
 
+  @Test
+  public void testCleanCMSeries() {
+    if (cleanAcmo.isPresent()) {
+      assertEquals("CM0", cleanAcmo.get().getCMSeries().orElse(""));
+      assertTrue(cleanAcmo.get().isValid());
+    } else {
+      fail("Cannot find clean ACMO file");
+    }
+  }
+
   @Test
   public void testCleanFormatValid() {
     if (cleanAcmo.isPresent()) {
@@ -96,6 +114,145 @@ public class ACMOFileTest {
     }
   }
 
+  @Test
+  public void testApsimZeroDateInvalid() {
+    if (apsim1230Acmo.isPresent()) {
+      assertFalse("No errors found in apsimerror", apsim1230Acmo.get().checkFormat());
+      String report = apsim1230Acmo.get().getErrorReport();
+      assertTrue(report.contains("Invalid date for HADAT_S (12-30-0) on line 10"));
+      assertTrue(report.contains("on line 20"));
+    } else {
+      fail("Cannot find apsimerror ACMO file");
+    }
+  }
+
+  @Test
+  public void testErrorLimit() throws URISyntaxException {
+    Path dateissue = Paths.get(ACMOFileTest.class.getResource("dateissue.acmo").toURI());
+    ACMOFile acmo = new ACMOFile(dateissue);
+    acmo.setErrorLimit(1);
+    assertFalse(acmo.isValid());
+    String report = acmo.getErrorReport();
+    assertTrue(report.contains("on line 5"));
+    assertFalse(report.contains("on line 7"));
+    assertTrue(report.contains("2 problems found (Invalid date: 2), only the first 1 is listed."));
+  }
+
+  @Test
+  public void testFailFast() throws URISyntaxException {
+    Path dateissue = Paths.get(ACMOFileTest.class.getResource("dateissue.acmo").toURI());
+    ACMOFile acmo = new ACMOFile(dateissue);
+    acmo.setFailFast(true);
+    assertFalse(acmo.isValid());
+    String report = acmo.getErrorReport();
+    assertTrue(report.contains("on line 5"));
+    assertFalse(report.contains("on line 7"));
+    assertTrue(report.contains("Stopped checking this file at the first failure."));
+  }
+
+  @Test
+  public void testQuickCheck() throws URISyntaxException {
+    Path clean = Paths.get(ACMOFileTest.class.getResource("clean.acmo").toURI());
+    Path dateissue = Paths.get(ACMOFileTest.class.getResource("dateissue.acmo").toURI());
+    ACMOQuickCheck check = new ACMOFile(clean).quickCheck(10, new Random(0));
+    assertTrue(check.isValid());
+    assertTrue(check.isComplete());
+    check = new ACMOFile(dateissue).quickCheck(10, new Random(0));
+    assertFalse(check.isValid());
+    assertTrue(check.getErrorReport().contains("on line 5"));
+  }
+
+  @Test
+  public void testQuickCheckSample() throws URISyntaxException {
+    Path clean = Paths.get(ACMOFileTest.class.getResource("clean.acmo").toURI());
+    ACMOQuickCheck check = new ACMOFile(clean).quickCheck(10, new Random(0), 0L);
+    assertTrue(check.isValid());
+    assertFalse(check.isComplete());
+    assertEquals(0L, check.getFailedLines());
+    long checked = check.getCheckedLines();
+    assertTrue(checked > 2L);
+    assertTrue(checked <= 12L);
+    String bound = String.format(Locale.ROOT, "%.2f", 300.0 / (checked - 2L));
+    assertTrue(check.getConfidence(), check.getConfidence().startsWith(checked + " of about "));
+    assertTrue(check.getConfidence(), check.getConfidence().endsWith(
+        " data lines were checked. With 95% confidence, fewer than " + bound
+        + "% of the data lines have problems."));
+  }
+
+  @Test
+  public void testQuickCheckSampleReportsOffsets() throws IOException, URISyntaxException {
+    Path dateissue = Paths.get(ACMOFileTest.class.getResource("dateissue.acmo").toURI());
+    // Ranges of a byte each, drawn from their start, visit every line
+    Random start = new Random() {
+      @Override
+      public double nextDouble() {
+        return 0.0;
+      }
+    };
+    ACMOQuickCheck check = new ACMOFile(dateissue).quickCheck(100000, start, 0L);
+    assertFalse(check.isValid());
+    assertFalse(check.isComplete());
+    assertEquals(2L, check.getFailedLines());
+    String report = check.getErrorReport();
+    assertTrue(report, report.contains("on the line at byte " + lineOffset(dateissue, 5) + "\n"));
+    assertTrue(report, report.contains("on the line at byte " + lineOffset(dateissue, 7) + "\n"));
+    assertTrue(check.getConfidence(), check.getConfidence().endsWith(" Problems were found in 2 of them."));
+  }
+
+  /**
+   * @return the byte offset of a line, counted from 1
+   */
+  private static long lineOffset(Path file, int line) throws IOException {
+    byte[] bytes = Files.readAllBytes(file);
+    int found = 1;
+    for (int i = 0; i < bytes.length; i++) {
+      if (found == line) {
+        return i;
+      }
+      if (bytes[i] == '\n') {
+        found++;
+      }
+    }
+    throw new IllegalArgumentException("No line " + line);
+  }
+
+  @Test
+  public void testQuickCheckKeepsFullRead() throws URISyntaxException {
+    Path clean = Paths.get(ACMOFileTest.class.getResource("clean.acmo").toURI());
+    ACMOFile full = new ACMOFile(clean);
+    Map<String, String> metadata = Collections.singletonMap("reg_id", "RESTORED");
+    ACMOFile acmo = new ACMOFile(clean, full.getHeader().get(), "CM3", metadata,
+        Collections.singleton("RICE"), Collections.singleton("WSTA"));
+    Path filename = acmo.getCleanFilename();
+    ACMOQuickCheck check = acmo.quickCheck(10, new Random(0), 0L);
+    assertTrue(check.isValid());
+    assertEquals("CM0", check.getCMSeries().orElse(""));
+    assertEquals(full.getMetadata(), check.getMetadata());
+    assertArrayEquals(full.getHeader().get(), check.getHeader().get());
+    assertEquals("CM3", acmo.getCMSeries().get());
+    assertEquals(metadata, acmo.getMetadata());
+    assertEquals(filename, acmo.getCleanFilename());
+    assertEquals(filename, acmo.getCleanFilename(false, true));
+  }
+
+  @Test
+  public void testValidationFollowsFileChanges() throws IOException, URISyntaxException {
+    Path clean = Paths.get(ACMOFileTest.class.getResource("clean.acmo").toURI());
+    Path dateissue = Paths.get(ACMOFileTest.class.getResource("dateissue.acmo").toURI());
+    Path copy = Files.createTempFile("acmotest", ".csv");
+    try {
+      Files.copy(clean, copy, StandardCopyOption.REPLACE_EXISTING);
+      ACMOFile acmo = new ACMOFile(copy);
+      assertTrue(acmo.isValid());
+      Files.copy(dateissue, copy, StandardCopyOption.REPLACE_EXISTING);
+      Files.setLastModifiedTime(copy, FileTime.fromMillis(System.currentTimeMillis() + 60000L));
+      assertFalse("Changed file was not revalidated", acmo.isValid());
+      assertFalse(acmo.revalidate());
+    } finally {
+      Files.deleteIfExists(copy);
+    }
+  }
+
   private void displayErrorReport(ACMOFile f) {
     System.out.println("Error Report for " + f.getPath().toString());
     System.out.println(f.getErrorReport());
@@ -0,0 +1,114 @@
+package org.agmip.cropmodel.dataset.filetype;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ACMORowCursorTest {
+  private Path acmo;
+
+  @Before
+  public void setup() throws IOException {
+    String content = "!,Example ACMO\n"
+        + "#,EXNAME,CROP,HWAH\n"
+        + "*,EX1,MAIZE,1200\n"
+        + "*,\"EX\n2\",\"SAY \"\"CORN\"\"\",\"1,300\"\n"
+        + "*,EX3\n"
+        + "#,hwah, Exname \n"
+        + "*,1400,EX4,EXTRA\n";
+    acmo = Files.createTempFile("cursortest", ".csv");
+    Files.write(acmo, content.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    Files.deleteIfExists(acmo);
+  }
+
+  private static String value(ACMORowCursor rows, int k) {
+    CharSequence value = rows.get(k);
+    return value == null ? null : value.toString();
+  }
+
+  @Test
+  public void testNamedProjection() throws IOException {
+    try (ACMORowCursor rows = ACMOFile.openRows(acmo, "exname", "crop", "hwah")) {
+      assertNull(rows.getHeader());
+      assertTrue(rows.next());
+      assertEquals('!', rows.getMarker());
+      assertEquals(-1, rows.getColumn(0));
+      assertNull(rows.get(0));
+
+      assertTrue(rows.next());
+      assertEquals('#', rows.getMarker());
+      assertEquals(1, rows.getColumn(0));
+      assertEquals(2, rows.getColumn(1));
+      assertEquals(3, rows.getColumn(2));
+
+      assertTrue(rows.next());
+      assertEquals('*', rows.getMarker());
+      assertEquals("EX1", value(rows, 0));
+      assertEquals("MAIZE", value(rows, 1));
+      assertEquals("1200", value(rows, 2));
+
+      // Quoted values with a line break, doubled quotes and a comma
+      assertTrue(rows.next());
+      assertEquals(4, rows.getLineNumber());
+      assertEquals("EX\n2", value(rows, 0));
+      assertEquals("SAY \"CORN\"", value(rows, 1));
+      assertEquals("1,300", value(rows, 2));
+      assertEquals(4, rows.getColumnCount());
+
+      // A row shorter than the projection
+      assertTrue(rows.next());
+      assertEquals(5, rows.getLineNumber());
+      assertEquals("EX3", value(rows, 0));
+      assertNull(rows.get(1));
+      assertNull(rows.get(2));
+
+      // A second header re-maps the names, and drops the missing CROP
+      assertTrue(rows.next());
+      assertEquals('#', rows.getMarker());
+      assertArrayEquals(new String[]{"#", "hwah", " Exname "}, rows.getHeader());
+      assertEquals(2, rows.getColumn(0));
+      assertEquals(-1, rows.getColumn(1));
+      assertEquals(1, rows.getColumn(2));
+
+      assertTrue(rows.next());
+      assertEquals("EX4", value(rows, 0));
+      assertNull(rows.get(1));
+      assertEquals("1400", value(rows, 2));
+      assertFalse(rows.next());
+    }
+  }
+
+  @Test
+  public void testPositionalProjection() throws IOException {
+    try (ACMORowCursor rows = ACMOFile.openRows(acmo)) {
+      rows.project(1, 3);
+      while (rows.next() && rows.getMarker() != '*') {
+        // Skip to the first data row
+      }
+      assertEquals("EX1", value(rows, 0));
+      assertEquals("1200", value(rows, 1));
+      long offset = rows.getNextRowOffset();
+      assertTrue(rows.next());
+      assertEquals(offset, rows.getRowOffset());
+      // The projection stays fixed after the second header
+      while (rows.next() && rows.getMarker() != '#') {
+        // Skip to the second header
+      }
+      assertEquals(1, rows.getColumn(0));
+      assertTrue(rows.next());
+      assertEquals("1400", value(rows, 0));
+      assertEquals("EXTRA", value(rows, 1));
+    }
+  }
+}
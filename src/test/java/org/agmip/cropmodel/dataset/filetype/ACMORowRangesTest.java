@@ -0,0 +1,106 @@
+package org.agmip.cropmodel.dataset.filetype;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ACMORowRangesTest {
+  private Path acmo;
+  private ExecutorService executor;
+
+  @Before
+  public void setup() throws IOException {
+    acmo = Files.createTempFile("rangetest", ".csv");
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    executor.shutdown();
+    Files.deleteIfExists(acmo);
+  }
+
+  /**
+   * Write an ACMO file with every value quoted. The rows between
+   * {@code from} and {@code to} have a note of {@code noteLines} lines.
+   */
+  private void writeQuoted(int rows, int from, int to, int noteLines) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(acmo, StandardCharsets.US_ASCII)) {
+      out.write("\"!\",\"Quoted ACMO\"\n");
+      out.write("\"#\",\"EXNAME\",\"NOTE\",\"HWAH\"\n");
+      for (int i = 0; i < rows; i++) {
+        out.write("\"*\",\"EX" + i + "\",\"");
+        if (i >= from && i < to) {
+          for (int k = 0; k < noteLines; k++) {
+            out.write("note line " + k + " of row " + i + ", with \"\"quotes\"\"\n");
+          }
+        }
+        out.write("done\",\"" + (i * 10) + "\"\n");
+        if (i == rows / 2) {
+          out.write("\"#\",\"HWAH\",\"EXNAME\",\"NOTE\"\n");
+        }
+      }
+    }
+  }
+
+  private List<String> visit(ExecutorService executor, long rangeSize, int processors, int[] rangeCount)
+      throws IOException {
+    List<String> visited = new ArrayList<>();
+    try (ACMORowCursor rows = ACMOFile.openRows(acmo, "exname", "hwah")) {
+      List<ACMORowRanges.Range<List<String>>> ranges = ACMORowRanges.visit(rows, executor, rangeSize,
+          processors, ArrayList::new, (result, row, line) -> {
+            result.add(line + "|" + row.getMarker() + "|" + row.getRowOffset() + "|" + row.get(0) + "|"
+                + row.get(1));
+            return true;
+          });
+      rangeCount[0] = ranges.size();
+      for (ACMORowRanges.Range<List<String>> range : ranges) {
+        for (String row : range.getResult()) {
+          int bar = row.indexOf('|');
+          visited.add((range.getLineOffset() + Long.parseLong(row.substring(0, bar))) + row.substring(bar));
+        }
+      }
+    }
+    return visited;
+  }
+
+  private void assertSameAsSerial(long rangeSize) throws IOException {
+    int[] rangeCount = new int[1];
+    List<String> serial = visit(null, rangeSize, 4, rangeCount);
+    assertEquals(1, rangeCount[0]);
+    List<String> parallel = visit(executor, rangeSize, 4, rangeCount);
+    assertTrue("Only " + rangeCount[0] + " ranges", rangeCount[0] > 1);
+    assertEquals(serial.size(), parallel.size());
+    for (int i = 0; i < serial.size(); i++) {
+      assertEquals(serial.get(i), parallel.get(i));
+    }
+  }
+
+  @Test
+  public void testQuotedRows() throws IOException {
+    writeQuoted(2000, 100, 1900, 3);
+    assertSameAsSerial(4096);
+  }
+
+  /**
+   * Ranges that start inside the long notes read the quotes inside out, and
+   * take the rest of the file for one row.
+   */
+  @Test
+  public void testRangesInsideQuotes() throws IOException {
+    writeQuoted(40000, 10, 12, 40000);
+    assertSameAsSerial(256 * 1024);
+  }
+}
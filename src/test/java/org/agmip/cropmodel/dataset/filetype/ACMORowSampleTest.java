@@ -0,0 +1,162 @@
+package org.agmip.cropmodel.dataset.filetype;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ACMORowSampleTest {
+  private static final int ROWS = 10000;
+  private Path acmo;
+  // The byte offset of each data row, by its number
+  private final long[] offsets = new long[ROWS];
+  private final Map<Long, Integer> rowAt = new HashMap<>();
+
+  @Before
+  public void setup() throws IOException {
+    acmo = Files.createTempFile("sampletest", ".csv");
+    long offset = 0L;
+    try (OutputStream out = Files.newOutputStream(acmo)) {
+      offset += write(out, "!,Sampled ACMO\n");
+      offset += write(out, "#,EXNAME,HWAH\n");
+      for (int i = 0; i < ROWS; i++) {
+        offsets[i] = offset;
+        rowAt.put(offset, i);
+        offset += write(out, "*,EX" + i + "," + (i * 10) + "\n");
+      }
+      // More than the first tail read after the last data row
+      for (int k = 0; k < 5000; k++) {
+        write(out, "!,trailing note " + k + "\n");
+      }
+    }
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    Files.deleteIfExists(acmo);
+  }
+
+  private static int write(OutputStream out, String line) throws IOException {
+    byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+    out.write(bytes);
+    return bytes.length;
+  }
+
+  private static final class Visited {
+    final long line;
+    final long offset;
+    final char marker;
+    final String exname;
+
+    Visited(long line, long offset, char marker, String exname) {
+      this.line = line;
+      this.offset = offset;
+      this.marker = marker;
+      this.exname = exname;
+    }
+  }
+
+  private ACMORowSample.Sample visit(int samples, Random random, long fullCheckSize, List<Visited> visited)
+      throws IOException {
+    try (ACMORowCursor rows = ACMOFile.openRows(acmo, "exname", "hwah")) {
+      while (rows.next() && rows.getMarker() != '#') {
+        // Skip to the header
+      }
+      return ACMORowSample.visit(rows, samples, random, fullCheckSize, visited, (result, row, line) -> {
+        CharSequence exname = row.get(0);
+        result.add(new Visited(line, row.getRowOffset(), row.getMarker(),
+            (exname == null) ? null : exname.toString()));
+        return true;
+      });
+    }
+  }
+
+  @Test
+  public void testDraws() throws IOException {
+    List<Visited> visited = new ArrayList<>();
+    ACMORowSample.Sample sample = visit(100, new Random(0), 0L, visited);
+    assertFalse(sample.isComplete());
+    assertFalse(sample.isStopped());
+    assertTrue(sample.getDrawnRows() > 50);
+    assertTrue(sample.getDrawnRows() <= 100);
+    assertEquals(sample.getDrawnRows() + 2, sample.getDataRows());
+    assertEquals(sample.getDataRows(), visited.size());
+
+    // The first data row has its line number, the others only their offsets
+    Visited first = visited.get(0);
+    assertEquals(3L, first.line);
+    assertEquals("EX0", first.exname);
+    int previous = 0;
+    for (Visited row : visited.subList(1, visited.size())) {
+      assertEquals(-1L, row.line);
+      assertEquals('*', row.marker);
+      Integer i = rowAt.get(row.offset);
+      assertNotNull("Not at the start of a row: " + row.offset, i);
+      assertEquals("EX" + i, row.exname);
+      assertTrue(i > previous);
+      previous = i;
+    }
+    assertEquals(ROWS - 1, previous);
+    assertEquals(offsets[ROWS - 1], visited.get(visited.size() - 1).offset);
+
+    // The rows are all about the same size
+    long estimate = sample.getEstimatedDataRows();
+    assertTrue("Estimated " + estimate, Math.abs(estimate - ROWS) < ROWS / 10);
+  }
+
+  @Test
+  public void testDrawEveryRow() throws IOException {
+    // Ranges shorter than a row, each drawn from its start
+    Random start = new Random() {
+      @Override
+      public double nextDouble() {
+        return 0.0;
+      }
+    };
+    List<Visited> visited = new ArrayList<>();
+    ACMORowSample.Sample sample = visit(ROWS * 4, start, 0L, visited);
+    assertFalse(sample.isComplete());
+    assertEquals(ROWS, sample.getDataRows());
+    assertEquals(ROWS - 2, sample.getDrawnRows());
+    assertEquals(ROWS, sample.getEstimatedDataRows());
+    for (int i = 0; i < ROWS; i++) {
+      assertEquals(offsets[i], visited.get(i).offset);
+    }
+  }
+
+  @Test
+  public void testFirstAndLastRows() throws IOException {
+    List<Visited> visited = new ArrayList<>();
+    ACMORowSample.Sample sample = visit(0, new Random(0), 0L, visited);
+    assertEquals(2L, sample.getDataRows());
+    assertEquals(0L, sample.getDrawnRows());
+    assertEquals(2, visited.size());
+    assertEquals("EX0", visited.get(0).exname);
+    assertEquals("EX" + (ROWS - 1), visited.get(1).exname);
+  }
+
+  @Test
+  public void testSmallFileInFull() throws IOException {
+    List<Visited> visited = new ArrayList<>();
+    ACMORowSample.Sample sample = visit(100, new Random(0), Files.size(acmo), visited);
+    assertTrue(sample.isComplete());
+    assertEquals(ROWS, sample.getDataRows());
+    assertEquals(ROWS, sample.getEstimatedDataRows());
+    assertEquals(ROWS + 5000, visited.size());
+    for (int i = 0; i < visited.size(); i++) {
+      assertEquals(i + 3L, visited.get(i).line);
+    }
+  }
+}
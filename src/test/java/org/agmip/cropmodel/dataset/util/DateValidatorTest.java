@@ -0,0 +1,105 @@
+package org.agmip.cropmodel.dataset.util;
+
+import org.agmip.cropmodel.dataset.Constants;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DateValidatorTest {
+  @Test
+  public void testApsimZeroDate() {
+    assertEquals(DateValidator.APSIM_ZERO_DATE, DateValidator.check("12-30-0"));
+    assertEquals(DateValidator.APSIM_ZERO_DATE, DateValidator.check("12-30-00"));
+    assertEquals(DateValidator.APSIM_ZERO_DATE, DateValidator.check("12-30-1899"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("12-30-1898"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("12-30-01899"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("12-30-01"));
+    assertEquals(DateValidator.VALID, DateValidator.check("1899-12-30"));
+  }
+
+  @Test
+  public void testLeapDays() {
+    assertTrue(DateValidator.isValid("2016-02-29"));
+    assertTrue(DateValidator.isValid("2000-02-29"));
+    assertTrue(DateValidator.isValid("0-02-29"));
+    assertTrue(DateValidator.isValid("-4-02-29"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("2015-02-29"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("1900-02-29"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("-1-02-29"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("2016-02-30"));
+  }
+
+  @Test
+  public void testDigits() {
+    assertTrue(DateValidator.isValid("2016-1-5"));
+    assertTrue(DateValidator.isValid("2016-01-05"));
+    assertTrue(DateValidator.isValid("2016-12-31"));
+    assertTrue(DateValidator.isValid("16-1-5"));
+    assertTrue(DateValidator.isValid("000002016-01-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("0000002016-01-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016-001-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016-01-005"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016-01"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016--05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016/01/05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check(" 2016-01-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016-01-05T00:00"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check(""));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("2016-00-05"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("2016-13-05"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("2016-01-00"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("2016-04-31"));
+  }
+
+  @Test
+  public void testSigns() {
+    assertTrue(DateValidator.isValid("+2016-01-05"));
+    assertTrue(DateValidator.isValid("-2016-01-05"));
+    assertTrue(DateValidator.isValid("-0-01-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("+-2016-01-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("--2016-01-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("-"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016-+1-05"));
+    assertEquals(DateValidator.MALFORMED, DateValidator.check("2016-01--5"));
+  }
+
+  @Test
+  public void testYearBounds() {
+    assertTrue(DateValidator.isValid("-292275055-01-01"));
+    assertTrue(DateValidator.isValid("292278994-12-31"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("-292275056-12-31"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("292278995-01-01"));
+    assertEquals(DateValidator.NO_SUCH_DAY, DateValidator.check("999999999-01-01"));
+  }
+
+  /**
+   * Every combination of these years, months and days, with one and two digit
+   * months and days, is valid exactly when DATE_FORMAT parses it.
+   */
+  @Test
+  public void testSameAsDateFormat() {
+    String[] years = {"-292275054", "-1", "-0", "0", "00", "+0", "1", "99", "1899", "1900",
+      "2000", "2015", "2016", "+2016", "02016", "292278993", "1000000000"};
+    for (String year : years) {
+      for (int month = 0; month <= 13; month++) {
+        for (int day = 0; day <= 32; day++) {
+          String[] months = {Integer.toString(month), String.format("%02d", month)};
+          String[] days = {Integer.toString(day), String.format("%02d", day)};
+          for (String m : months) {
+            for (String d : days) {
+              String date = year + "-" + m + "-" + d;
+              boolean parsed;
+              try {
+                Constants.DATE_FORMAT.parseLocalDate(date);
+                parsed = true;
+              } catch (IllegalArgumentException ex) {
+                parsed = false;
+              }
+              assertEquals(date, parsed, DateValidator.isValid(date));
+            }
+          }
+        }
+      }
+    }
+  }
+}
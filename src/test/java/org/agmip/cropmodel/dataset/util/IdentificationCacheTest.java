@@ -0,0 +1,105 @@
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+import org.agmip.cropmodel.dataset.filetype.ACMOFile;
+import org.agmip.cropmodel.dataset.filetype.CropModelFile;
+import org.agmip.cropmodel.dataset.filetype.CropModelFile.CropModelFileType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IdentificationCacheTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Path basedir;
+  private Path clean;
+  private Path dateissue;
+  private Path readme;
+
+  @Before
+  public void setup() throws IOException, URISyntaxException {
+    basedir = folder.getRoot().toPath();
+    Path acmo = Files.createDirectory(basedir.resolve("acmo"));
+    clean = Files.copy(resource("clean.acmo"), acmo.resolve("clean.csv"));
+    dateissue = Files.copy(resource("dateissue.acmo"), acmo.resolve("dateissue.csv"));
+    readme = Files.write(basedir.resolve("readme.txt"), "Notes\n".getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Path resource(String name) throws URISyntaxException {
+    return Paths.get(getClass().getResource("/org/agmip/cropmodel/dataset/filetype/" + name).toURI());
+  }
+
+  private static IdentificationCache saved(Path basedir, Path... files) {
+    IdentificationCache cache = new IdentificationCache(basedir);
+    for (Path file : files) {
+      assertNotNull(cache.identify(file));
+    }
+    cache.save();
+    assertTrue(Files.isRegularFile(basedir.resolve(IdentificationCache.CACHE_FILE)));
+    return cache;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    IdentificationCache first = saved(basedir, clean, dateissue, readme);
+    IdentificationCache loaded = IdentificationCache.load(basedir);
+    for (Path file : new Path[]{clean, dateissue, readme}) {
+      CropModelFile original = first.identify(file);
+      CropModelFile restored = loaded.identify(file);
+      assertNotSame(original, restored);
+      assertEquals(original.getFileType(), restored.getFileType());
+      assertEquals(file, restored.getPath());
+    }
+    assertEquals(CropModelFileType.SUPPLEMENTAL, loaded.identify(readme).getFileType());
+
+    ACMOFile original = (ACMOFile) first.identify(clean);
+    ACMOFile restored = (ACMOFile) loaded.identify(clean);
+    assertArrayEquals(original.getHeader().get(), restored.getHeader().get());
+    assertEquals(original.getCMSeries(), restored.getCMSeries());
+    assertEquals(original.getMetadata(), restored.getMetadata());
+    assertEquals(original.getCrops(), restored.getCrops());
+    assertEquals(original.getWeatherIds(), restored.getWeatherIds());
+    assertEquals(original.getCleanFilename(), restored.getCleanFilename());
+  }
+
+  @Test
+  public void testRestoredAcmoIsValidated() {
+    saved(basedir, clean, dateissue);
+    IdentificationCache loaded = IdentificationCache.load(basedir);
+    ACMOFile restoredClean = (ACMOFile) loaded.identify(clean);
+    ACMOFile restoredDateissue = (ACMOFile) loaded.identify(dateissue);
+    // Restored without reading the file, it is read when first validated
+    assertTrue(restoredClean.isValid());
+    assertFalse(restoredDateissue.isValid());
+    assertTrue(restoredDateissue.getErrorReport().contains("on line 5"));
+  }
+
+  @Test
+  public void testChangedFileIdentifiedAgain() throws IOException, URISyntaxException {
+    saved(basedir, clean);
+    Files.copy(resource("dateissue.acmo"), clean, StandardCopyOption.REPLACE_EXISTING);
+    Files.setLastModifiedTime(clean, FileTime.fromMillis(System.currentTimeMillis() + 60000L));
+    ACMOFile changed = (ACMOFile) IdentificationCache.load(basedir).identify(clean);
+    assertEquals(new ACMOFile(dateissue).getMetadata(), changed.getMetadata());
+    assertFalse(changed.isValid());
+  }
+
+  @Test
+  public void testUnreadableCacheIgnored() throws IOException {
+    Files.write(basedir.resolve(IdentificationCache.CACHE_FILE), "{\"version\":1,\"files\":{\"acmo/clean.csv\":"
+        .getBytes(StandardCharsets.UTF_8));
+    IdentificationCache loaded = IdentificationCache.load(basedir);
+    assertEquals(CropModelFileType.ACMO, loaded.identify(clean).getFileType());
+  }
+}
@@ -0,0 +1,149 @@
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LinkCheckerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private LinkageIndex index;
+  private Path acmo;
+  private ExecutorService executor;
+
+  @Before
+  public void setup() throws IOException {
+    index = new LinkageIndex();
+    index.experiment("E1", "EXP1");
+    index.experiment("E2", "EXP2");
+    index.soil("S1", "SOIL1");
+    index.weather("W1", "WSTA", "0XFX");
+    index.seal();
+    acmo = folder.getRoot().toPath().resolve("links.csv");
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @After
+  public void cleanup() {
+    executor.shutdown();
+  }
+
+  private void write(String... lines) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String line : lines) {
+      sb.append(line).append('\n');
+    }
+    Files.write(acmo, sb.toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * @return the error report, or {@code null} if the file passed
+   */
+  private String check(ExecutorService executor, int errorLimit, long rangeSize, int processors) {
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    boolean passed = LinkChecker.checkLinkedData(acmo, new PrintWriter(out, true), new PrintWriter(err, true),
+        index, executor, errorLimit, false, rangeSize, processors);
+    assertEquals(passed, err.toString().isEmpty());
+    return passed ? null : err.toString().replace(System.lineSeparator(), "\n");
+  }
+
+  private String check() {
+    return check(null, DiagnosticLog.UNLIMITED, Long.MAX_VALUE, 1);
+  }
+
+  @Test
+  public void testLinkedFile() throws IOException {
+    write("!,Linked",
+        "#,EXNAME,EID,SOIL_ID,SID,WST_ID,CLIM_ID,WID",
+        "*,EXP1,E1,SOIL1,S1,WSTA,0XFX,W1",
+        "*,EXP2,E2,SOIL1,S1,WSTA,0XFX,W1");
+    assertNull(check());
+  }
+
+  @Test
+  public void testExactColumnNames() throws IOException {
+    // SEID is not EID, and its values are not experiment IDs
+    write("#,EXNAME,SEID,EID,SOIL_ID,SID,WST_ID,CLIM_ID,WID",
+        "*,EXP1,X1,E1,SOIL1,S1,WSTA,0XFX,W1");
+    assertNull(check());
+    write("#,EXNAME,SEID,SOIL_ID,SID,WST_ID,CLIM_ID,WID",
+        "*,EXP1,X1,SOIL1,S1,WSTA,0XFX,W1");
+    assertNull(check());
+    // Names are matched without regard to case or surrounding blanks
+    write("#,exname, Eid ,soil_id,sid,wst_id,clim_id,wid",
+        "*,EXP1,E9,SOIL1,S1,WSTA,0XFX,W1");
+    String report = check();
+    assertNotNull(report);
+    assertTrue(report, report.contains("EID not found for [EXP1]: E9"));
+  }
+
+  @Test
+  public void testMissingColumnsSkipped() throws IOException {
+    // Without SOIL_ID, SID and WID nothing is read in their place
+    write("#,EXNAME,EID,WST_ID,CLIM_ID",
+        "*,EXP1,E1,WSTA,0XFX");
+    assertNull(check());
+  }
+
+  @Test
+  public void testErrorsListedOnce() throws IOException {
+    write("#,EXNAME,EID,SOIL_ID,SID,WST_ID,CLIM_ID,WID",
+        "*,EXP1,E9,SOIL1,S1,WSTA,0XFX,W1",
+        "*,EXP1,E9,SOIL1,S9,WSTA,0XFX,W1",
+        ",not an entry",
+        "*,EXP3,E1,SOIL1,S1,WSTB,0XFX,W9",
+        "*,EXP1,E9,SOIL1,S9,WSTA,0XFX,W1");
+    String report = check();
+    assertEquals("[FAILED] " + acmo + "\n"
+        + "         EID not found for [EXP1]: E9\n"
+        + "         SID not found for [SOIL1]: S9\n"
+        + "                  Invalid ACMO entry on line 4\n"
+        + "         EXNAME not found: EXP3\n"
+        + "         WST_ID WSTB not found with CLIM_ID: 0XFX\n"
+        + "         WID not found for [WSTB + 0XFX]: W9\n\n", report);
+  }
+
+  /**
+   * Errors repeated across ranges are listed once, in the order of a serial
+   * check, and counted the same.
+   */
+  @Test
+  public void testRangesSameAsSerial() throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add("#,EXNAME,EID,SOIL_ID,SID,WST_ID,CLIM_ID,WID");
+    for (int i = 0; i < 20000; i++) {
+      if (i % 997 == 0) {
+        lines.add(",not an entry " + i);
+      }
+      String eid = (i % 7 == 0) ? "E" + (100 + i % 50) : "E1";
+      String sid = (i % 11 == 0) ? "S" + (100 + i % 13) : "S1";
+      lines.add("*,EXP1," + eid + ",SOIL1," + sid + ",WSTA,0XFX,W1");
+    }
+    write(lines.toArray(new String[0]));
+    for (int limit : new int[]{DiagnosticLog.UNLIMITED, 0, 5, 40}) {
+      String serial = check(null, limit, 4096, 4);
+      assertNotNull(serial);
+      assertEquals("Error limit " + limit, serial, check(executor, limit, 4096, 4));
+    }
+    String report = check();
+    assertTrue(report, report.contains("EID not found for [EXP1]: E107\n"));
+    assertEquals(report.indexOf("E107"), report.lastIndexOf("E107"));
+    assertTrue(report, report.contains("Invalid ACMO entry on line 19962\n"));
+  }
+}
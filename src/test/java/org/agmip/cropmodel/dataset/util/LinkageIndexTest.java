@@ -0,0 +1,158 @@
+package org.agmip.cropmodel.dataset.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkageIndexTest {
+  private static final int IDS = 5000;
+
+  private static String randomId(Random random) {
+    StringBuilder sb = new StringBuilder();
+    int length = 1 + random.nextInt(8);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) ('A' + random.nextInt(6)));
+    }
+    return sb.toString();
+  }
+
+  private static void checkAgainstSets(boolean useBloomFilter) {
+    Random random = new Random(42);
+    LinkageIndex index = new LinkageIndex(useBloomFilter);
+    Set<String> experiments = new HashSet<>();
+    Set<String> exnames = new HashSet<>();
+    Set<String> soils = new HashSet<>();
+    Set<String> soilIds = new HashSet<>();
+    Set<String> weathers = new HashSet<>();
+    Set<List<String>> wstclim = new HashSet<>();
+    for (int i = 0; i < IDS; i++) {
+      String id = randomId(random);
+      String name = (i % 10 == 0) ? "" : randomId(random);
+      switch (i % 3) {
+        case 0:
+          index.experiment(id, name);
+          experiments.add(id);
+          if (!name.isEmpty()) {
+            exnames.add(name);
+          }
+          break;
+        case 1:
+          index.soil(id, name);
+          soils.add(id);
+          if (!name.isEmpty()) {
+            soilIds.add(name);
+          }
+          break;
+        default:
+          String clim = randomId(random);
+          index.weather(id, name, clim);
+          weathers.add(id);
+          if (!name.isEmpty()) {
+            List<String> pair = new ArrayList<>();
+            pair.add(name);
+            pair.add(clim);
+            wstclim.add(pair);
+          }
+      }
+    }
+    index.seal();
+    assertEquals(experiments.size(), index.getExperimentCount());
+    assertEquals(exnames.size(), index.getExnameCount());
+    assertEquals(soils.size(), index.getSoilCount());
+    assertEquals(soilIds.size(), index.getSoilIdCount());
+    assertEquals(weathers.size(), index.getWeatherCount());
+    assertEquals(wstclim.size(), index.getWstClimCount());
+
+    // Query both with strings and with other character sequences, as read
+    // in place from a file
+    Random queries = new Random(7);
+    for (int i = 0; i < IDS * 4; i++) {
+      String value = randomId(queries);
+      String other = randomId(queries);
+      for (CharSequence query : new CharSequence[]{value, new StringBuilder(value)}) {
+        assertEquals(value, experiments.contains(value), index.hasExperiment(query));
+        assertEquals(value, exnames.contains(value), index.hasExname(query));
+        assertEquals(value, soils.contains(value), index.hasSoil(query));
+        assertEquals(value, soilIds.contains(value), index.hasSoilId(query));
+        assertEquals(value, weathers.contains(value), index.hasWeather(query));
+        List<String> pair = new ArrayList<>();
+        pair.add(value);
+        pair.add(other);
+        assertEquals(pair.toString(), wstclim.contains(pair), index.hasWstClim(query, new StringBuilder(other)));
+      }
+    }
+    for (List<String> pair : wstclim) {
+      assertTrue(pair.toString(), index.hasWstClim(pair.get(0), pair.get(1)));
+    }
+  }
+
+  @Test
+  public void testAgainstSets() {
+    checkAgainstSets(false);
+  }
+
+  @Test
+  public void testAgainstSetsWithBloomFilter() {
+    checkAgainstSets(true);
+  }
+
+  @Test
+  public void testEmptyNames() {
+    for (boolean useBloomFilter : new boolean[]{false, true}) {
+      LinkageIndex index = new LinkageIndex(useBloomFilter);
+      index.experiment("E1", "");
+      index.soil("S1", "");
+      index.weather("W1", "", "0XFX");
+      index.seal();
+      assertTrue(index.hasExperiment("E1"));
+      assertTrue(index.hasSoil("S1"));
+      assertTrue(index.hasWeather("W1"));
+      assertFalse(index.hasExname(""));
+      assertFalse(index.hasSoilId(""));
+      assertFalse(index.hasWstClim("", "0XFX"));
+      assertEquals(0, index.getExnameCount());
+      assertEquals(0, index.getSoilIdCount());
+      assertEquals(0, index.getWstClimCount());
+      assertFalse(index.hasExperiment(null));
+      assertFalse(index.hasWstClim(null, "0XFX"));
+    }
+  }
+
+  @Test
+  public void testFirstSymbolPair() {
+    // The first symbol as both the WST_ID and CLIM_ID
+    LinkageIndex index = new LinkageIndex();
+    index.weather("UFGA", "UFGA", "UFGA");
+    index.seal();
+    assertTrue(index.hasWstClim("UFGA", "UFGA"));
+    assertFalse(index.hasWstClim("UFGA", "0XFX"));
+    assertEquals(1, index.getWstClimCount());
+  }
+
+  @Test
+  public void testEmptyIndex() {
+    LinkageIndex index = new LinkageIndex(true);
+    index.seal();
+    assertFalse(index.hasExperiment("E1"));
+    assertFalse(index.hasWstClim("UFGA", "0XFX"));
+  }
+
+  @Test
+  public void testSealed() {
+    LinkageIndex index = new LinkageIndex();
+    index.seal();
+    assertTrue(index.isSealed());
+    try {
+      index.soil("S1", "SOIL1");
+      fail("Added to a sealed index");
+    } catch (IllegalStateException ex) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MarkerLineScannerTest {
+  private static MarkerLineScanner scan(String text, Charset charset, boolean quoteAware) {
+    byte[] bytes = text.getBytes(charset);
+    MarkerLineScanner scanner = new MarkerLineScanner(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    scanner.setQuoteAware(quoteAware);
+    return scanner;
+  }
+
+  private static String field(MarkerLineScanner.Field field, int k) {
+    assertTrue(field.set(k));
+    return field.toString();
+  }
+
+  @Test
+  public void testQuotedFields() throws IOException {
+    MarkerLineScanner scanner = scan("*,\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",\"\",\"cr\r\nlf\"\n*,last\n",
+        StandardCharsets.US_ASCII, true);
+    MarkerLineScanner.Field field = scanner.newField(StandardCharsets.US_ASCII);
+    assertTrue(scanner.nextLine());
+    assertEquals('*', scanner.marker());
+    assertEquals(6, scanner.getFieldCount());
+    assertEquals("a,b", field(field, 1));
+    assertEquals("say \"hi\"", field(field, 2));
+    assertEquals(8, field.length());
+    assertEquals('"', field.charAt(4));
+    assertEquals("two\nlines", field(field, 3));
+    assertEquals("", field(field, 4));
+    assertEquals("cr\r\nlf", field(field, 5));
+    assertFalse(field.set(6));
+    assertFalse(field.set(-1));
+    assertEquals(1, scanner.getLineNumber());
+    assertTrue(scanner.nextLine());
+    assertEquals(2, scanner.getLineNumber());
+    assertEquals("last", field(field, 1));
+    assertFalse(scanner.nextLine());
+  }
+
+  @Test
+  public void testLinesWithoutQuoteAwareness() throws IOException {
+    MarkerLineScanner scanner = scan("*,\"two\nlines\"\n", StandardCharsets.US_ASCII, false);
+    assertTrue(scanner.nextLine());
+    assertEquals(6, scanner.length());
+    assertArrayEquals(new String[]{"*", "two"}, scanner.columns(StandardCharsets.US_ASCII));
+    assertTrue(scanner.nextLine());
+    assertEquals(2, scanner.getLineNumber());
+    assertArrayEquals(new String[]{"lines"}, scanner.columns(StandardCharsets.US_ASCII));
+    assertFalse(scanner.nextLine());
+  }
+
+  @Test
+  public void testMaxLineLength() throws IOException {
+    StringBuilder sb = new StringBuilder("*,short\n*,\"");
+    for (int i = 0; i < 2000; i++) {
+      sb.append("inside quotes\n");
+    }
+    sb.append("\"\n*,after\n");
+    MarkerLineScanner scanner = scan(sb.toString(), StandardCharsets.US_ASCII, true);
+    scanner.setMaxLineLength(16384);
+    assertTrue(scanner.nextLine());
+    assertFalse(scanner.isLineTooLong());
+    assertFalse(scanner.nextLine());
+    assertTrue(scanner.isLineTooLong());
+    assertFalse(scanner.nextLine());
+
+    scanner = scan(sb.toString(), StandardCharsets.US_ASCII, true);
+    scanner.setMaxLineLength(65536);
+    assertTrue(scanner.nextLine());
+    assertTrue(scanner.nextLine());
+    assertEquals(2000 * 14 + 4, scanner.length());
+    assertTrue(scanner.nextLine());
+    assertEquals(3, scanner.getLineNumber());
+    assertFalse(scanner.nextLine());
+    assertFalse(scanner.isLineTooLong());
+  }
+
+  @Test
+  public void testNonAsciiFields() throws IOException {
+    for (Charset charset : new Charset[]{StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+      MarkerLineScanner scanner = scan("*,caf\u00e9,\"\u00e9t\u00e9, hiver\",\"\"\"\u00e0\"\" la\",plain\n",
+          charset, true);
+      MarkerLineScanner.Field field = scanner.newField(charset);
+      assertTrue(scanner.nextLine());
+      assertEquals("caf\u00e9", field(field, 1));
+      assertEquals(4, field.length());
+      assertEquals('\u00e9', field.charAt(3));
+      assertEquals("af", field.subSequence(1, 3).toString());
+      assertEquals("\u00e9t\u00e9, hiver", field(field, 2));
+      assertEquals("\"\u00e0\" la", field(field, 3));
+      assertEquals("plain", field(field, 4));
+      assertArrayEquals(new String[]{"*", "caf\u00e9", "\u00e9t\u00e9, hiver", "\"\u00e0\" la", "plain"},
+          scanner.columns(charset));
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.agmip.cropmodel.dataset.CropModelDataset;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PackageExtractorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Path basedir;
+  private Path dataset;
+
+  @Before
+  public void setup() throws IOException, URISyntaxException {
+    Path clean = Paths.get(getClass().getResource("/org/agmip/cropmodel/dataset/filetype/clean.acmo").toURI());
+    basedir = folder.getRoot().toPath();
+    dataset = Files.createDirectory(basedir.resolve("dataset"));
+    Files.createDirectory(dataset.resolve("acmo"));
+    Files.copy(clean, dataset.resolve("acmo").resolve("clean.csv"));
+    Path notes = Files.createDirectory(dataset.resolve("notes"));
+    byte[] readme = "Same notes in every copy\n".getBytes(StandardCharsets.UTF_8);
+    Files.write(notes.resolve("first.txt"), readme);
+    Files.write(notes.resolve("second.txt"), readme);
+    Files.write(notes.resolve("third.txt"), "Other notes\n".getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Path packageDataset(String name, boolean deduplicate) {
+    Path notes = dataset.resolve("notes");
+    Path zipFile = basedir.resolve(name);
+    CropModelDataset cmd = new CropModelDataset();
+    cmd.setDeduplicatePackageFiles(deduplicate);
+    cmd.identifyDatasetFiles(dataset);
+    cmd.packageDataset(zipFile, "pkg", notes.resolve("first.txt"), notes.resolve("second.txt"),
+        notes.resolve("third.txt"));
+    assertTrue(Files.isRegularFile(zipFile));
+    return zipFile;
+  }
+
+  private static Map<String, byte[]> readTree(Path dir) throws IOException {
+    Map<String, byte[]> tree = new TreeMap<>();
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        tree.put(dir.relativize(file).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return tree;
+  }
+
+  @Test
+  public void testExpandDuplicatesRoundTrip() throws IOException {
+    Path full = basedir.resolve("full");
+    Path expanded = basedir.resolve("expanded");
+    Path deduplicated = basedir.resolve("deduplicated");
+    PackageExtractor.extract(packageDataset("full.zip", false), full, false);
+    Path zipFile = packageDataset("dedup.zip", true);
+    PackageExtractor.extract(zipFile, expanded, true);
+    PackageExtractor.extract(zipFile, deduplicated, false);
+
+    Map<String, byte[]> fullTree = readTree(full);
+    Map<String, byte[]> expandedTree = readTree(expanded);
+    assertTrue(fullTree.containsKey("pkg/second.txt"));
+    String duplicates = "pkg/" + PackageExtractor.DUPLICATES_MANIFEST;
+    assertNotNull(expandedTree.remove(duplicates));
+    assertEquals(fullTree.keySet(), expandedTree.keySet());
+    for (Map.Entry<String, byte[]> e : fullTree.entrySet()) {
+      assertArrayEquals(e.getValue(), expandedTree.get(e.getKey()));
+    }
+
+    Map<String, byte[]> deduplicatedTree = readTree(deduplicated);
+    assertTrue(deduplicatedTree.containsKey("pkg/first.txt"));
+    assertFalse(deduplicatedTree.containsKey("pkg/second.txt"));
+    assertTrue(deduplicatedTree.containsKey("pkg/third.txt"));
+    assertEquals("entry,same_as\npkg/second.txt,pkg/first.txt\n",
+        new String(deduplicatedTree.get(duplicates), StandardCharsets.UTF_8).replace("\"", ""));
+  }
+
+  @Test
+  public void testEntryOutsideDirectory() throws IOException {
+    Path zipFile = basedir.resolve("crafted.zip");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+      out.putNextEntry(new ZipEntry("pkg/inside.txt"));
+      out.write("inside".getBytes(StandardCharsets.UTF_8));
+      out.putNextEntry(new ZipEntry("pkg/../../outside.txt"));
+      out.write("outside".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    Path dir = basedir.resolve("extracted");
+    try {
+      PackageExtractor.extract(zipFile, dir, false);
+      fail("Extracted an entry outside of the directory");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("pkg/../../outside.txt"));
+    }
+    assertFalse(Files.exists(basedir.resolve("outside.txt")));
+  }
+}
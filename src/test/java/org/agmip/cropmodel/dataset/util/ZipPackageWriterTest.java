@@ -0,0 +1,209 @@
+package org.agmip.cropmodel.dataset.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ZipPackageWriterTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Path basedir;
+  private Path text;
+  private Path gzip;
+  private byte[] textContent;
+  private byte[] gzipContent;
+
+  @Before
+  public void setup() throws IOException {
+    basedir = folder.getRoot().toPath();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      sb.append("*,EXP").append(i).append(",MAIZ,\"1,2\",\u00e9t\u00e9\n");
+    }
+    textContent = sb.toString().getBytes(StandardCharsets.UTF_8);
+    text = Files.write(basedir.resolve("data.csv"), textContent);
+    ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(gz)) {
+      out.write(textContent);
+    }
+    gzipContent = gz.toByteArray();
+    gzip = Files.write(basedir.resolve("data.aceb"), gzipContent);
+  }
+
+  private Map<String, byte[]> expected() {
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    entries.put("pkg/", new byte[0]);
+    entries.put("pkg/data.csv", textContent);
+    entries.put("pkg/data.aceb", gzipContent);
+    entries.put("pkg/entry.csv", textContent);
+    entries.put("pkg/entry.dome", gzipContent);
+    return entries;
+  }
+
+  private void writeEntries(ZipPackageWriter zip) throws IOException {
+    zip.putDirectory("pkg");
+    zip.putFile("pkg/data.csv", text);
+    zip.putFile("pkg/data.aceb", gzip);
+    zip.putEntry("pkg/entry.csv", (out) -> out.write(textContent));
+    zip.putCompressedEntry("pkg/entry.dome", (out) -> out.write(gzipContent));
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[8192];
+    int n;
+    while ((n = in.read(b)) != -1) {
+      out.write(b, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Read the entries through their local headers.
+   */
+  private static void assertZipStream(InputStream zipStream, Map<String, byte[]> expected) throws IOException {
+    try (ZipInputStream in = new ZipInputStream(zipStream)) {
+      for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+        ZipEntry entry = in.getNextEntry();
+        assertEquals(e.getKey(), entry.getName());
+        assertArrayEquals(e.getValue(), readAll(in));
+      }
+      assertNull(in.getNextEntry());
+    }
+  }
+
+  /**
+   * Read the entries through the central directory, then through their local
+   * headers.
+   */
+  private static void assertZipFile(Path zipFile, Map<String, byte[]> expected) throws IOException {
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      assertEquals(expected.size(), zip.size());
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+        ZipEntry entry = entries.nextElement();
+        assertEquals(e.getKey(), entry.getName());
+        try (InputStream in = zip.getInputStream(entry)) {
+          assertArrayEquals(e.getValue(), readAll(in));
+        }
+      }
+    }
+    assertZipStream(Files.newInputStream(zipFile), expected);
+  }
+
+  @Test
+  public void testStreamRoundTrip() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ZipPackageWriter zip = new ZipPackageWriter(out, null)) {
+      writeEntries(zip);
+    }
+    Map<String, byte[]> expected = expected();
+    assertZipStream(new ByteArrayInputStream(out.toByteArray()), expected);
+    Path zipFile = Files.write(basedir.resolve("stream.zip"), out.toByteArray());
+    assertZipFile(zipFile, expected);
+  }
+
+  @Test
+  public void testChannelRoundTrip() throws IOException {
+    Path zipFile = basedir.resolve("channel.zip");
+    Path copyFile = basedir.resolve("copy.zip");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      try (ZipPackageWriter zip = new ZipPackageWriter(FileChannel.open(zipFile,
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), executor)) {
+        writeEntries(zip);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    Map<String, byte[]> expected = expected();
+    assertZipFile(zipFile, expected);
+    try (ZipPackageReader reader = new ZipPackageReader(zipFile);
+        ZipPackageWriter zip = new ZipPackageWriter(FileChannel.open(copyFile,
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), null)) {
+      assertEquals(expected.size(), reader.getEntries().size());
+      for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+        ZipPackageReader.RawEntry entry = reader.getEntry(e.getKey());
+        assertArrayEquals(e.getValue(), reader.readEntry(entry));
+        try (InputStream in = reader.getInputStream(entry)) {
+          assertArrayEquals(e.getValue(), readAll(in));
+        }
+        zip.putRawEntry(e.getKey(), reader, entry);
+      }
+    }
+    assertZipFile(copyFile, expected);
+  }
+
+  @Test
+  public void testChannelWithoutExecutor() throws IOException {
+    Path zipFile = basedir.resolve("serial.zip");
+    try (ZipPackageWriter zip = new ZipPackageWriter(FileChannel.open(zipFile,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), null)) {
+      writeEntries(zip);
+    }
+    assertZipFile(zipFile, expected());
+    // The content of unknown size has a Zip64 field, so its local header
+    // must leave both sizes to it.
+    ByteBuffer header = findLocalHeader(Files.readAllBytes(zipFile), "pkg/entry.dome");
+    assertEquals(20, header.getShort(28));
+    assertEquals(0xFFFFFFFFL, header.getInt(18) & 0xFFFFFFFFL);
+    assertEquals(0xFFFFFFFFL, header.getInt(22) & 0xFFFFFFFFL);
+    assertEquals(gzipContent.length, header.getLong(30 + 14 + 4));
+  }
+
+  private static ByteBuffer findLocalHeader(byte[] zip, String name) {
+    byte[] b = name.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buf = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i + 30 + b.length <= zip.length; i++) {
+      if (buf.getInt(i) == 0x04034b50 && buf.getShort(i + 26) == b.length
+          && Arrays.equals(b, Arrays.copyOfRange(zip, i + 30, i + 30 + b.length))) {
+        return ByteBuffer.wrap(zip, i, zip.length - i).slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+    fail("No local header for " + name);
+    return null;
+  }
+
+  @Test
+  public void testAbortSkipsCentralDirectory() throws IOException {
+    Path zipFile = basedir.resolve("aborted.zip");
+    try (ZipPackageWriter zip = new ZipPackageWriter(FileChannel.open(zipFile,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), null)) {
+      writeEntries(zip);
+      zip.abort();
+    }
+    try {
+      new ZipFile(zipFile.toFile()).close();
+      fail("An aborted package was readable");
+    } catch (ZipException ex) {
+      // Expected, there is no central directory
+    }
+  }
+}